@@ -0,0 +1,54 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line (same syntax as the JMH launcher) once per thread count, always
+ * with the GC profiler so allocation rates per operation are part of the results.
+ *
+ * Pass {@code -t} to run a single thread count instead of the default sweep.
+ */
+public class BenchmarkMain
+{
+  private static final int[] THREAD_COUNTS = {1, 4, 16, 64};
+
+  public static void main(String[] args) throws Exception
+  {
+    final CommandLineOptions commandLine = new CommandLineOptions(args);
+    if (commandLine.getThreads().hasValue()) {
+      new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build()).run();
+      return;
+    }
+    for (int threads : THREAD_COUNTS) {
+      new Runner(
+          new OptionsBuilder()
+              .parent(commandLine)
+              .threads(threads)
+              .addProfiler(GCProfiler.class)
+              .build()
+      ).run();
+    }
+  }
+}
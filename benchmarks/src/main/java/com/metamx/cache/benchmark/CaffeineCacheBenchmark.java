@@ -0,0 +1,156 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache.benchmark;
+
+import com.google.common.primitives.Ints;
+import com.metamx.cache.CacheExecutorFactory;
+import com.metamx.cache.CaffeineCache;
+import com.metamx.cache.CaffeineCacheConfig;
+import io.druid.client.cache.Cache;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CaffeineCacheBenchmark
+{
+  private static final String NAMESPACE = "benchmark";
+  // Roughly how many value bytes are resident, so large values don't need a huge heap
+  private static final long RESIDENT_BYTES = 64L * 1024 * 1024;
+  private static final int BULK_SIZE = 100;
+
+  @Param({"100", "10000", "1000000"})
+  public int valueSize;
+
+  @Param({"0.5", "0.9", "1.0"})
+  public double hitRatio;
+
+  // VIRTUAL_THREAD runs on the common pool, like COMMON_FJP, on JDKs without virtual threads
+  @Param({"COMMON_FJP", "SINGLE_THREAD", "SAME_THREAD", "BOUNDED_POOL", "VIRTUAL_THREAD"})
+  public String executorFactory;
+
+  private CaffeineCache cache;
+  private Executor executor;
+  private byte[][] values;
+  private Cache.NamedKey[] keys;
+  private int residentKeys;
+
+  @Setup(Level.Trial)
+  public void setUp()
+  {
+    residentKeys = (int) Math.max(64, RESIDENT_BYTES / valueSize);
+    // Keys past residentKeys are never populated, so reads over the whole key space hit at hitRatio
+    final int keySpace = (int) Math.ceil(residentKeys / hitRatio);
+    final long sizeInBytes = residentKeys * (long) valueSize * 2;
+    final CaffeineCacheConfig config = new CaffeineCacheConfig()
+    {
+      @Override
+      public long getSizeInBytes()
+      {
+        return sizeInBytes;
+      }
+    };
+    executor = CacheExecutorFactory.from(executorFactory).createExecutor();
+    cache = CaffeineCache.create(config, executor);
+
+    final Random random = new Random(1234);
+    values = new byte[16][];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = compressibleBytes(random, valueSize);
+    }
+    keys = new Cache.NamedKey[keySpace];
+    for (int i = 0; i < keySpace; ++i) {
+      keys[i] = new Cache.NamedKey(NAMESPACE, Ints.toByteArray(i));
+    }
+    for (int i = 0; i < residentKeys; ++i) {
+      cache.put(keys[i], values[i % values.length]);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown()
+  {
+    if (executor instanceof ExecutorService) {
+      ((ExecutorService) executor).shutdownNow();
+    }
+  }
+
+  @Benchmark
+  public byte[] get()
+  {
+    return cache.get(keys[ThreadLocalRandom.current().nextInt(keys.length)]);
+  }
+
+  @Benchmark
+  public void put()
+  {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    // Overwrite resident keys so the hit ratio of concurrent readers stays put
+    cache.put(keys[random.nextInt(residentKeys)], values[random.nextInt(values.length)]);
+  }
+
+  @Benchmark
+  public void getBulk(Blackhole blackhole)
+  {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final List<Cache.NamedKey> bulk = new ArrayList<>(BULK_SIZE);
+    for (int i = 0; i < BULK_SIZE; ++i) {
+      bulk.add(keys[random.nextInt(keys.length)]);
+    }
+    final Map<Cache.NamedKey, byte[]> result = cache.getBulk(bulk);
+    blackhole.consume(result);
+  }
+
+  /**
+   * Bytes from a small alphabet, which LZ4 compresses to about half like typical serialized query results
+   */
+  private static byte[] compressibleBytes(Random random, int size)
+  {
+    final byte[] bytes = new byte[size];
+    for (int i = 0; i < size; ++i) {
+      bytes[i] = (byte) ('a' + random.nextInt(16));
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.metamx.common.logger.Logger;
+import io.druid.client.cache.Cache.NamedKey;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only trace of sampled cache accesses, replayed offline by {@link TraceSimulator}.
+ *
+ * Keys are sampled by hash, so a sampled key has every access traced and the trace behaves like the full workload
+ * against a cache scaled down by the sample rate. The file holds a magic number, a version and the sample rate,
+ * followed by one record per access: the op, the milliseconds since the trace started, the 64 bit key hash and the
+ * entry weight. Recording stops once the file reaches its maximum size.
+ *
+ * Accesses are queued and whichever recording thread finds the stream free writes out the queue, so threads never wait
+ * on each other to trace.
+ */
+public class AccessTrace
+{
+  private static final Logger log = new Logger(AccessTrace.class);
+  private static final int MAGIC = 0xCAFC7ACE;
+  // Version 1 had int milliseconds, which wrapped after 24 days
+  static final int VERSION = 2;
+  private static final int HEADER_SIZE = Integer.BYTES * 2 + Double.BYTES;
+  static final int RECORD_SIZE = 1 + Long.BYTES + Long.BYTES + Integer.BYTES;
+  private static final HashFunction HASH = Hashing.murmur3_128();
+  // Keys whose hash falls below the sample limit in this many buckets are traced
+  private static final long SAMPLE_BUCKETS = 1L << 24;
+
+  public static final byte OP_HIT = 0;
+  public static final byte OP_MISS = 1;
+  public static final byte OP_PUT = 2;
+
+  private final File file;
+  private final double sampleRate;
+  private final long sampleLimit;
+  private final long maxRecords;
+  private final long startMillis;
+  private final DataOutputStream out;
+  private final Queue<Record> pending = new ConcurrentLinkedQueue<>();
+  // Records taken by recording threads, written or still pending
+  private final AtomicLong taken = new AtomicLong();
+  private volatile boolean closed = false;
+  // Guards the stream and the fields below
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private long records = 0;
+  private boolean streamClosed = false;
+
+  /**
+   * @param sampleRate Fraction of the keys to trace
+   * @param maxBytes   The size at which the trace stops growing
+   */
+  public AccessTrace(File file, double sampleRate, long maxBytes) throws IOException
+  {
+    this.file = file;
+    this.sampleRate = sampleRate;
+    this.sampleLimit = (long) (sampleRate * SAMPLE_BUCKETS);
+    this.maxRecords = Math.max(maxBytes - HEADER_SIZE, 0) / RECORD_SIZE;
+    this.startMillis = System.currentTimeMillis();
+    this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeDouble(sampleRate);
+  }
+
+  static long hash(NamedKey key)
+  {
+    return HASH.newHasher()
+               .putString(key.namespace, StandardCharsets.UTF_8)
+               .putBytes(key.key)
+               .hash()
+               .asLong();
+  }
+
+  /**
+   * @return If accesses to the key are traced, from its hash code so keys which aren't cost no hashing
+   */
+  boolean isSampled(NamedKey key)
+  {
+    // Spread the hash code, its high bits alone would leave out whole namespaces
+    final long spread = key.hashCode() * 0x9E3779B97F4A7C15L;
+    return ((spread ^ (spread >>> 29)) >>> 40) < sampleLimit;
+  }
+
+  /**
+   * Trace an access to a key which {@link #isSampled(NamedKey)}.
+   */
+  void record(byte op, NamedKey key, int weight)
+  {
+    write(op, hash(key), weight);
+  }
+
+  void write(byte op, long keyHash, int weight)
+  {
+    if (closed || taken.getAndIncrement() >= maxRecords) {
+      return;
+    }
+    pending.add(new Record(op, System.currentTimeMillis() - startMillis, keyHash, weight));
+    if (writeLock.tryLock()) {
+      try {
+        drain();
+      }
+      finally {
+        writeLock.unlock();
+      }
+    }
+  }
+
+  void close()
+  {
+    closed = true;
+    writeLock.lock();
+    try {
+      drain();
+      if (!streamClosed) {
+        streamClosed = true;
+        out.close();
+        log.info("Wrote [%,d] records to access trace [%s]", records, file);
+      }
+    }
+    catch (IOException e) {
+      log.warn(e, "Unable to close access trace [%s]", file);
+    }
+    finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Write out the queued records, or drop them once the stream is closed. Called holding the write lock.
+   */
+  private void drain()
+  {
+    Record record;
+    while ((record = pending.poll()) != null) {
+      if (streamClosed) {
+        continue;
+      }
+      try {
+        out.writeByte(record.op);
+        out.writeLong(record.millis);
+        out.writeLong(record.keyHash);
+        out.writeInt(record.weight);
+        if (++records == maxRecords) {
+          log.info("Access trace [%s] is full with [%,d] records", file, records);
+          out.flush();
+        }
+      }
+      catch (IOException e) {
+        log.warn(e, "Unable to write access trace [%s], stopping", file);
+        closed = true;
+        streamClosed = true;
+        try {
+          out.close();
+        }
+        catch (IOException ignored) {
+          // Already failing
+        }
+      }
+    }
+  }
+
+  double getSampleRate()
+  {
+    return sampleRate;
+  }
+
+  public interface RecordHandler
+  {
+    void handle(byte op, long millis, long keyHash, int weight);
+  }
+
+  /**
+   * @return The sample rate the trace was recorded with
+   *
+   * @throws IOException if the file is not a trace of a known version
+   */
+  public static double readHeader(DataInputStream in) throws IOException
+  {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not an access trace");
+    }
+    final int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException(String.format("Unknown access trace version [%d]", version));
+    }
+    return in.readDouble();
+  }
+
+  /**
+   * Read the records following the header in order. A truncated last record is ignored.
+   */
+  public static void readRecords(DataInputStream in, RecordHandler handler) throws IOException
+  {
+    while (true) {
+      final byte op;
+      final long millis;
+      final long keyHash;
+      final int weight;
+      try {
+        op = in.readByte();
+        millis = in.readLong();
+        keyHash = in.readLong();
+        weight = in.readInt();
+      }
+      catch (EOFException e) {
+        return;
+      }
+      handler.handle(op, millis, keyHash, weight);
+    }
+  }
+
+  private static class Record
+  {
+    private final byte op;
+    private final long millis;
+    private final long keyHash;
+    private final int weight;
+
+    private Record(byte op, long millis, long keyHash, int weight)
+    {
+      this.op = op;
+      this.millis = millis;
+      this.keyHash = keyHash;
+      this.weight = weight;
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.metamx.common.logger.Logger;
+import com.metamx.emitter.service.ServiceEmitter;
+import com.metamx.emitter.service.ServiceMetricEvent;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs puts in the background so query threads don't pay for compression. The puts in flight are bounded by count and
+ * by raw bytes, puts beyond either bound are dropped rather than blocking the caller. A dropped put is only a later
+ * cache miss.
+ */
+class AsyncWriter
+{
+  private static final Logger log = new Logger(AsyncWriter.class);
+
+  private final Executor executor;
+  private final int maxPending;
+  private final long maxPendingBytes;
+  private final AtomicInteger pending = new AtomicInteger(0);
+  private final AtomicLong pendingBytes = new AtomicLong(0);
+  private final LongAdder dropped = new LongAdder();
+  private final AtomicLong priorDropped = new AtomicLong(0);
+
+  /**
+   * @param maxPending      The most puts queued or running at once
+   * @param maxPendingBytes The most raw bytes of the puts queued or running at once
+   */
+  AsyncWriter(Executor executor, int maxPending, long maxPendingBytes)
+  {
+    this.executor = executor;
+    this.maxPending = maxPending;
+    this.maxPendingBytes = maxPendingBytes;
+  }
+
+  /**
+   * Run the put in the background, or drop it if too many are in flight
+   *
+   * @param bytes The raw length of the value
+   */
+  void submit(int bytes, Runnable put)
+  {
+    final int count = pending.incrementAndGet();
+    final long total = pendingBytes.addAndGet(bytes);
+    if (count > maxPending || total > maxPendingBytes) {
+      release(bytes);
+      dropped.increment();
+      return;
+    }
+    try {
+      executor.execute(
+          () -> {
+            try {
+              put.run();
+            }
+            catch (RuntimeException e) {
+              log.error(e, "Failed to put cache value in the background");
+            }
+            finally {
+              release(bytes);
+            }
+          }
+      );
+    }
+    catch (RejectedExecutionException e) {
+      release(bytes);
+      dropped.increment();
+    }
+  }
+
+  private void release(int bytes)
+  {
+    pendingBytes.addAndGet(-bytes);
+    pending.decrementAndGet();
+  }
+
+  int getPending()
+  {
+    return pending.get();
+  }
+
+  long getPendingBytes()
+  {
+    return pendingBytes.get();
+  }
+
+  long getDropped()
+  {
+    return dropped.sum();
+  }
+
+  void emit(ServiceEmitter emitter, ServiceMetricEvent.Builder builder)
+  {
+    final long total = dropped.sum();
+    emitter.emit(builder.build("query/cache/caffeine/asyncPut/pending", pending.get()));
+    emitter.emit(builder.build("query/cache/caffeine/asyncPut/pendingBytes", pendingBytes.get()));
+    emitter.emit(builder.build("query/cache/caffeine/total/droppedPuts", total));
+    emitter.emit(builder.build("query/cache/caffeine/delta/droppedPuts", total - priorDropped.getAndSet(total)));
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.metamx.common.ISE;
+import java.nio.ByteBuffer;
+import javax.annotation.Nullable;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * A block compression codec. Every stored value records the format of the codec which wrote it, so values written by
+ * any codec can be read back no matter which one is currently configured for writes.
+ */
+public abstract class CacheCodec
+{
+  public static final byte FORMAT_RAW = 0;
+  public static final byte FORMAT_LZ4 = 1;
+  public static final byte FORMAT_ZSTD = 2;
+  private static final int FORMAT_COUNT = 3;
+
+  private final byte format;
+
+  protected CacheCodec(byte format)
+  {
+    this.format = format;
+  }
+
+  /**
+   * @return The format byte written in front of values compressed by this codec
+   */
+  public byte getFormat()
+  {
+    return format;
+  }
+
+  public abstract int maxCompressedLength(int length);
+
+  /**
+   * @return The number of bytes written to dst
+   */
+  public abstract int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int maxDstLen);
+
+  /**
+   * @return If the compressed bytes look like this codec can decompress them, without decompressing them
+   */
+  public boolean canDecode(byte[] src, int srcOff, int srcLen)
+  {
+    return true;
+  }
+
+  /**
+   * Decompress exactly {@code dstLen} bytes into dst
+   */
+  public abstract void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen);
+
+  /**
+   * Decompress exactly {@code dstLen} bytes into dst at the absolute offset {@code dstOff}. dst's position is not
+   * changed.
+   */
+  public void decompress(byte[] src, int srcOff, int srcLen, ByteBuffer dst, int dstOff, int dstLen)
+  {
+    if (dst.hasArray() && !dst.isReadOnly()) {
+      decompress(src, srcOff, srcLen, dst.array(), dst.arrayOffset() + dstOff, dstLen);
+    } else {
+      final byte[] out = new byte[dstLen];
+      decompress(src, srcOff, srcLen, out, 0, dstLen);
+      final ByteBuffer view = dst.duplicate();
+      view.position(dstOff);
+      view.put(out);
+    }
+  }
+
+  /**
+   * Decoders indexed by format. The write codec decodes its own format so any dictionary it uses is honored.
+   */
+  public static CacheCodec[] decoders(@Nullable CacheCodec writeCodec)
+  {
+    final CacheCodec[] decoders = new CacheCodec[FORMAT_COUNT];
+    decoders[FORMAT_LZ4] = new Lz4Codec(LZ4Factory.fastestInstance().fastCompressor());
+    decoders[FORMAT_ZSTD] = new ZstdCodec(ZstdCodec.DEFAULT_LEVEL, null);
+    if (writeCodec != null) {
+      decoders[writeCodec.getFormat()] = writeCodec;
+    }
+    return decoders;
+  }
+
+  public static class Lz4Codec extends CacheCodec
+  {
+    private final LZ4Compressor compressor;
+    private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+    public Lz4Codec(LZ4Compressor compressor)
+    {
+      super(FORMAT_LZ4);
+      this.compressor = compressor;
+    }
+
+    @Override
+    public int maxCompressedLength(int length)
+    {
+      return compressor.maxCompressedLength(length);
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int maxDstLen)
+    {
+      return compressor.compress(src, srcOff, srcLen, dst, dstOff, maxDstLen);
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+    {
+      decompressor.decompress(src, srcOff, dst, dstOff, dstLen);
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOff, int srcLen, ByteBuffer dst, int dstOff, int dstLen)
+    {
+      // LZ4 decompresses straight into direct buffers too
+      decompressor.decompress(ByteBuffer.wrap(src), srcOff, dst, dstOff, dstLen);
+    }
+  }
+
+  public static class ZstdCodec extends CacheCodec
+  {
+    public static final int DEFAULT_LEVEL = 3;
+    private static final int MAGIC_SIZE = 4;
+    // Bytes of the dictionary id by the low bits of the frame header descriptor
+    private static final int[] DICT_ID_SIZES = {0, 1, 2, 4};
+    private static final int SINGLE_SEGMENT_FLAG = 0x20;
+
+    private final int level;
+    // 0 without a dictionary, which is also what zstd writes for frames compressed without one
+    private final long dictId;
+    @Nullable
+    private final ZstdDictCompress dictCompress;
+    @Nullable
+    private final ZstdDictDecompress dictDecompress;
+
+    public ZstdCodec(int level, @Nullable byte[] dictionary)
+    {
+      super(FORMAT_ZSTD);
+      this.level = level;
+      if (dictionary == null) {
+        dictCompress = null;
+        dictDecompress = null;
+        dictId = 0;
+      } else {
+        dictCompress = new ZstdDictCompress(dictionary, level);
+        dictDecompress = new ZstdDictDecompress(dictionary);
+        dictId = Zstd.getDictIdFromDict(dictionary);
+      }
+    }
+
+    /**
+     * Frames are only decoded with the dictionary they were compressed with, not with another one or none at all
+     */
+    @Override
+    public boolean canDecode(byte[] src, int srcOff, int srcLen)
+    {
+      return frameDictId(src, srcOff, srcLen) == dictId;
+    }
+
+    /**
+     * @return The dictionary id in the header of the frame, or 0 if it has none
+     */
+    static long frameDictId(byte[] src, int srcOff, int srcLen)
+    {
+      if (srcLen <= MAGIC_SIZE) {
+        return 0;
+      }
+      final int descriptor = src[srcOff + MAGIC_SIZE] & 0xFF;
+      final int dictIdSize = DICT_ID_SIZES[descriptor & 3];
+      // Followed by the window descriptor, unless the frame is a single segment
+      final int dictIdOff = srcOff + MAGIC_SIZE + 1 + ((descriptor & SINGLE_SEGMENT_FLAG) != 0 ? 0 : 1);
+      if (dictIdOff + dictIdSize > srcOff + srcLen) {
+        return 0;
+      }
+      long id = 0;
+      for (int i = 0; i < dictIdSize; ++i) {
+        id |= (long) (src[dictIdOff + i] & 0xFF) << (8 * i);
+      }
+      return id;
+    }
+
+    @Override
+    public int maxCompressedLength(int length)
+    {
+      return (int) Zstd.compressBound(length);
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int maxDstLen)
+    {
+      final long size;
+      if (dictCompress == null) {
+        size = Zstd.compressByteArray(dst, dstOff, maxDstLen, src, srcOff, srcLen, level);
+      } else {
+        size = Zstd.compressFastDict(dst, dstOff, src, srcOff, srcLen, dictCompress);
+      }
+      return (int) checkError(size);
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+    {
+      if (!canDecode(src, srcOff, srcLen)) {
+        throw new ISE(
+            "Frame was compressed with zstd dictionary [%d], not [%d]",
+            frameDictId(src, srcOff, srcLen),
+            dictId
+        );
+      }
+      final long size;
+      if (dictDecompress == null) {
+        size = Zstd.decompressByteArray(dst, dstOff, dstLen, src, srcOff, srcLen);
+      } else {
+        size = Zstd.decompressFastDict(dst, dstOff, src, srcOff, srcLen, dictDecompress);
+      }
+      if (checkError(size) != dstLen) {
+        throw new ISE("Expected [%,d] bytes but zstd decompressed [%,d]", dstLen, size);
+      }
+    }
+
+    private static long checkError(long size)
+    {
+      if (Zstd.isError(size)) {
+        throw new ISE("zstd error: %s", Zstd.getErrorName(size));
+      }
+      return size;
+    }
+  }
+}
@@ -20,8 +20,14 @@
 package com.metamx.cache;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.metamx.common.logger.Logger;
 import io.druid.concurrent.Execs;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public enum CacheExecutorFactory
 {
@@ -36,7 +42,13 @@ public enum CacheExecutorFactory
     @Override
     public Executor createExecutor()
     {
-      return Execs.singleThreaded("CaffeineWorker-%s");
+      return Execs.singleThreaded(WORKER_NAME_FORMAT);
+    }
+
+    @Override
+    public Executor createRejectingExecutor(int threads, int queueSize, String nameFormat)
+    {
+      return Execs.singleThreaded(nameFormat);
     }
   },
   SAME_THREAD {
@@ -45,10 +57,94 @@ public enum CacheExecutorFactory
     {
       return Runnable::run;
     }
+  },
+  /**
+   * A fixed pool with a bounded queue. When the queue is full the caller runs the task itself, which slows it down
+   * instead of letting work pile up.
+   */
+  BOUNDED_POOL {
+    @Override
+    public Executor createExecutor()
+    {
+      return createExecutor(-1, DEFAULT_QUEUE_SIZE);
+    }
+
+    @Override
+    public Executor createExecutor(int threads, int queueSize)
+    {
+      return boundedPool(threads, queueSize, WORKER_NAME_FORMAT, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @Override
+    public Executor createRejectingExecutor(int threads, int queueSize, String nameFormat)
+    {
+      return boundedPool(threads, queueSize, nameFormat, new ThreadPoolExecutor.AbortPolicy());
+    }
+  },
+  /**
+   * A new virtual thread per task, when running on a JDK which has them. Falls back to the ForkJoinPool common pool
+   * otherwise.
+   */
+  VIRTUAL_THREAD {
+    @Override
+    public Executor createExecutor()
+    {
+      try {
+        // Looked up reflectively, this module is built for Java 8
+        return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }
+      catch (ReflectiveOperationException e) {
+        log.warn("Virtual threads are not available on this JDK, using the ForkJoinPool common pool");
+        return null;
+      }
+    }
   };
 
+  private static final Logger log = new Logger(CacheExecutorFactory.class);
+  static final int DEFAULT_QUEUE_SIZE = 10_000;
+  private static final String WORKER_NAME_FORMAT = "CaffeineWorker-%s";
+
   public abstract Executor createExecutor();
 
+  /**
+   * @param threads   The size of the pool, or -1 for one thread per processor. Only used by pools
+   * @param queueSize The capacity of the queue. Only used by bounded pools
+   */
+  public Executor createExecutor(int threads, int queueSize)
+  {
+    return createExecutor();
+  }
+
+  /**
+   * Like {@link #createExecutor(int, int)}, but a bounded pool throws RejectedExecutionException once its queue is full
+   * instead of running the task on the caller. For work the caller would rather drop than do itself.
+   *
+   * @param nameFormat The name format of the threads the executor starts, so they can be told from the workers
+   */
+  public Executor createRejectingExecutor(int threads, int queueSize, String nameFormat)
+  {
+    return createExecutor(threads, queueSize);
+  }
+
+  private static Executor boundedPool(
+      int threads,
+      int queueSize,
+      String nameFormat,
+      RejectedExecutionHandler rejectedHandler
+  )
+  {
+    final int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    return new ThreadPoolExecutor(
+        poolSize,
+        poolSize,
+        0,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueSize),
+        Execs.makeThreadFactory(nameFormat),
+        rejectedHandler
+    );
+  }
+
   @JsonCreator
   public static CacheExecutorFactory from(String str)
   {
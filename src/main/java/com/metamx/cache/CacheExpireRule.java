@@ -0,0 +1,102 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.metamx.common.IAE;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * Expiration for the namespaces which start with a prefix, or match a regular expression as a whole. Entries either
+ * expire a time after they were last read or written (expireAfterAccess), or a time after they were written however
+ * often they are read (expireAfterWrite). Times are in ms.
+ */
+public class CacheExpireRule
+{
+  @Nullable
+  private final String prefix;
+  @Nullable
+  private final Pattern pattern;
+  private final long expireAfterAccess;
+  private final long expireAfterWrite;
+
+  @JsonCreator
+  public CacheExpireRule(
+      @JsonProperty("prefix") @Nullable String prefix,
+      @JsonProperty("pattern") @Nullable String pattern,
+      @JsonProperty("expireAfterAccess") @Nullable Long expireAfterAccess,
+      @JsonProperty("expireAfterWrite") @Nullable Long expireAfterWrite
+  )
+  {
+    if ((prefix == null) == (pattern == null)) {
+      throw new IAE("Expire rules need either a prefix or a pattern, got [%s] and [%s]", prefix, pattern);
+    }
+    if ((expireAfterAccess == null) == (expireAfterWrite == null)) {
+      throw new IAE("Expire rules need either expireAfterAccess or expireAfterWrite");
+    }
+    final long expireAfter = expireAfterAccess == null ? expireAfterWrite : expireAfterAccess;
+    if (expireAfter < 0) {
+      throw new IAE("Expire rule times can't be negative, got [%d]", expireAfter);
+    }
+    this.prefix = prefix;
+    this.pattern = pattern == null ? null : Pattern.compile(pattern);
+    this.expireAfterAccess = expireAfterAccess == null ? -1 : expireAfterAccess;
+    this.expireAfterWrite = expireAfterWrite == null ? -1 : expireAfterWrite;
+  }
+
+  @JsonProperty
+  @Nullable
+  public String getPrefix()
+  {
+    return prefix;
+  }
+
+  @JsonProperty
+  @Nullable
+  public String getPattern()
+  {
+    return pattern == null ? null : pattern.pattern();
+  }
+
+  /**
+   * @return The time after an access for which an entry may be expired, or -1 if the rule expires after write
+   */
+  @JsonProperty
+  public long getExpireAfterAccess()
+  {
+    return expireAfterAccess;
+  }
+
+  /**
+   * @return The time after a write for which an entry may be expired, or -1 if the rule expires after access
+   */
+  @JsonProperty
+  public long getExpireAfterWrite()
+  {
+    return expireAfterWrite;
+  }
+
+  boolean matches(String namespace)
+  {
+    return prefix != null ? namespace.startsWith(prefix) : pattern.matcher(namespace).matches();
+  }
+}
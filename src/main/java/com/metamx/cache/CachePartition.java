@@ -0,0 +1,114 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.metamx.common.logger.Logger;
+import io.druid.client.cache.Cache.NamedKey;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One Caffeine cache holding the namespaces which start with a prefix. The default partition has the empty prefix. With
+ * shards, a partition is several of these with the same prefix, each holding the keys which hash to it.
+ */
+class CachePartition
+{
+  private static final Logger log = new Logger(CachePartition.class);
+  static final String DEFAULT_NAME = "default";
+
+  private final String name;
+  private final String prefix;
+  private final Cache<NamedKey, byte[]> cache;
+  private final AtomicReference<CacheStats> priorStats = new AtomicReference<>(null);
+  // Read on puts, so kept apart from the eviction policy which takes Caffeine's eviction lock
+  private volatile long headroom;
+
+  CachePartition(String name, String prefix, Cache<NamedKey, byte[]> cache)
+  {
+    this.name = name;
+    this.prefix = prefix;
+    this.cache = cache;
+    refreshHeadroom();
+  }
+
+  String getName()
+  {
+    return name;
+  }
+
+  String getPrefix()
+  {
+    return prefix;
+  }
+
+  Cache<NamedKey, byte[]> getCache()
+  {
+    return cache;
+  }
+
+  boolean matches(String namespace)
+  {
+    return namespace.startsWith(prefix);
+  }
+
+  /**
+   * @return The weight of all entries, or empty if the partition is not weighted
+   */
+  OptionalLong weightedSize()
+  {
+    return cache.policy().eviction()
+                .map(eviction -> eviction.isWeighted() ? eviction.weightedSize() : OptionalLong.empty())
+                .orElse(OptionalLong.empty());
+  }
+
+  /**
+   * @return The weight which fit under the maximum as of the last {@link #refreshHeadroom()}, Long.MAX_VALUE if the
+   * partition is not bounded
+   */
+  long getHeadroom()
+  {
+    return headroom;
+  }
+
+  void refreshHeadroom()
+  {
+    headroom = cache.policy().eviction()
+                    .map(eviction -> eviction.getMaximum() - eviction.weightedSize().orElse(0))
+                    .orElse(Long.MAX_VALUE);
+  }
+
+  /**
+   * @return The stats since the previous call, remembering the current stats for the next one
+   */
+  CacheStats deltaStats(CacheStats newStats)
+  {
+    final CacheStats oldStats = priorStats.get();
+    if (!priorStats.compareAndSet(oldStats, newStats)) {
+      // ISE for stack trace
+      log.warn(
+          new IllegalStateException("Multiple monitors"),
+          "Multiple monitors on the same cache causing race conditions and unreliable stats reporting"
+      );
+    }
+    return oldStats == null ? newStats : newStats.minus(oldStats);
+  }
+}
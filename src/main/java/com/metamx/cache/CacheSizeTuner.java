@@ -0,0 +1,190 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.metamx.common.IAE;
+import com.metamx.common.logger.Logger;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Adjusts the maximum weight of the partitions on each monitor tick. The cache shrinks quickly when the heap is
+ * under pressure, and grows slowly while it is evicting, the heap is idle and growing still improves the hit rate.
+ * Every partition is scaled by the same factor so the configured proportions are kept.
+ */
+class CacheSizeTuner
+{
+  private static final Logger log = new Logger(CacheSizeTuner.class);
+  static final double GROW_FACTOR = 1.1;
+  static final double SHRINK_FACTOR = 0.75;
+
+  private final List<CachePartition> partitions;
+  private final long[] baseMaximums;
+  private final long baseBytes;
+  private final long minBytes;
+  private final long maxBytes;
+  private final double heapLowWatermark;
+  private final double heapHighWatermark;
+  private final DoubleSupplier heapUsage;
+  private long maximumBytes;
+  private boolean grew = false;
+  private double priorHitRate = 0;
+  // The hit rate at which growing stopped paying off, NaN while growth is allowed
+  private double stalledHitRate = Double.NaN;
+
+  /**
+   * @param partitions        Bounded partitions, their current maximums are the base for scaling
+   * @param minBytes          Lower bound for the sum of the partition maximums
+   * @param maxBytes          Upper bound for the sum of the partition maximums
+   * @param heapLowWatermark  Fraction of the heap in use under which the cache may grow
+   * @param heapHighWatermark Fraction of the heap in use at or above which the cache shrinks
+   * @param heapUsage         The fraction of the heap in use
+   */
+  CacheSizeTuner(
+      List<CachePartition> partitions,
+      long minBytes,
+      long maxBytes,
+      double heapLowWatermark,
+      double heapHighWatermark,
+      DoubleSupplier heapUsage
+  )
+  {
+    this.partitions = partitions;
+    this.baseMaximums = new long[partitions.size()];
+    long base = 0;
+    for (int i = 0; i < baseMaximums.length; ++i) {
+      baseMaximums[i] = eviction(partitions.get(i)).getMaximum();
+      base += baseMaximums[i];
+    }
+    if (minBytes > base || maxBytes < base) {
+      throw new IAE("Auto resize bounds [%,d, %,d] do not include sizeInBytes [%,d]", minBytes, maxBytes, base);
+    }
+    if (heapLowWatermark > heapHighWatermark) {
+      throw new IAE("Heap low watermark [%s] is above the high watermark [%s]", heapLowWatermark, heapHighWatermark);
+    }
+    this.baseBytes = base;
+    this.maximumBytes = base;
+    this.minBytes = minBytes;
+    this.maxBytes = maxBytes;
+    this.heapLowWatermark = heapLowWatermark;
+    this.heapHighWatermark = heapHighWatermark;
+    this.heapUsage = heapUsage;
+  }
+
+  static CacheSizeTuner create(List<CachePartition> partitions, CaffeineCacheConfig config)
+  {
+    if (config.getSizeInBytes() < 0) {
+      throw new IAE("autoResize requires sizeInBytes");
+    }
+    return new CacheSizeTuner(
+        partitions,
+        config.getAutoResizeMinBytes() >= 0 ? config.getAutoResizeMinBytes() : config.getSizeInBytes(),
+        config.getAutoResizeMaxBytes() >= 0 ? config.getAutoResizeMaxBytes() : config.getSizeInBytes(),
+        config.getAutoResizeHeapLowWatermark(),
+        config.getAutoResizeHeapHighWatermark(),
+        CacheSizeTuner::tenuredHeapUsage
+    );
+  }
+
+  /**
+   * @param deltaStats The stats of all partitions since the previous tick
+   *
+   * @return The sum of the partition maximums after tuning
+   */
+  synchronized long tune(CacheStats deltaStats)
+  {
+    final double usage = heapUsage.getAsDouble();
+    final double hitRate = deltaStats.hitRate();
+    if (grew && hitRate <= priorHitRate) {
+      stalledHitRate = hitRate;
+    }
+    long target = maximumBytes;
+    if (usage >= heapHighWatermark) {
+      target = (long) (maximumBytes * SHRINK_FACTOR);
+      stalledHitRate = Double.NaN;
+    } else if (usage < heapLowWatermark && deltaStats.evictionWeight() > 0 && deltaStats.requestCount() > 0) {
+      // Once growing stops paying off, only grow again if the hit rate drops (ex: the workload changed)
+      if (Double.isNaN(stalledHitRate) || hitRate < stalledHitRate) {
+        target = (long) Math.ceil(maximumBytes * GROW_FACTOR);
+        stalledHitRate = Double.NaN;
+      }
+    }
+    target = Math.max(minBytes, Math.min(maxBytes, target));
+    grew = target > maximumBytes;
+    priorHitRate = hitRate;
+    if (target != maximumBytes) {
+      log.info(
+          "Resizing cache from [%,d] to [%,d] bytes at heap usage [%.2f] and hit rate [%.3f]",
+          maximumBytes,
+          target,
+          usage,
+          hitRate
+      );
+      resize(target);
+    }
+    return maximumBytes;
+  }
+
+  synchronized long getMaximumBytes()
+  {
+    return maximumBytes;
+  }
+
+  private void resize(long bytes)
+  {
+    for (int i = 0; i < baseMaximums.length; ++i) {
+      eviction(partitions.get(i)).setMaximum((long) (baseMaximums[i] * ((double) bytes / baseBytes)));
+    }
+    maximumBytes = bytes;
+  }
+
+  private static Policy.Eviction<?, ?> eviction(CachePartition partition)
+  {
+    return partition.getCache().policy().eviction().orElseThrow(
+        () -> new IAE("Partition [%s] is not bounded", partition.getName())
+    );
+  }
+
+  /**
+   * @return The fraction of the heap in use by the tenured pool after its last collection, which unlike the current
+   * usage does not include garbage. Falls back to the current usage of the whole heap.
+   */
+  static double tenuredHeapUsage()
+  {
+    final long maxHeap = Runtime.getRuntime().maxMemory();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      // Only the tenured pool supports usage thresholds among the heap pools
+      if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()) {
+        final MemoryUsage afterGc = pool.getCollectionUsage();
+        if (afterGc != null && afterGc.getUsed() > 0) {
+          return (double) afterGc.getUsed() / maxHeap;
+        }
+      }
+    }
+    final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    return (double) heap.getUsed() / maxHeap;
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.metamx.common.logger.Logger;
+import io.druid.client.cache.Cache.NamedKey;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * On disk copy of cache entries, used to warm a cache up after a restart.
+ *
+ * The file is written sequentially: a magic number and a version, then for each entry the namespace, the key and the
+ * stored (already compressed) value, each prefixed with its length, then a -1 end marker and finally the CRC32 of
+ * everything before it. Files are written next to their destination and atomically moved into place. Files with an
+ * unknown version or a bad checksum are ignored as a whole.
+ */
+public class CacheSnapshot
+{
+  private static final Logger log = new Logger(CacheSnapshot.class);
+  private static final int MAGIC = 0xCAFCAC4E;
+  static final int VERSION = 1;
+  private static final int END_OF_ENTRIES = -1;
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /**
+   * @param entries The entries to write, in the order they should be loaded
+   *
+   * @return The number of entries written
+   */
+  public static int write(File file, Iterable<Map.Entry<NamedKey, byte[]>> entries) throws IOException
+  {
+    final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    final CRC32 crc = new CRC32();
+    int count = 0;
+    try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+      final DataOutputStream out = new DataOutputStream(
+          new CheckedOutputStream(new BufferedOutputStream(fileOut, BUFFER_SIZE), crc)
+      );
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      for (Map.Entry<NamedKey, byte[]> entry : entries) {
+        final byte[] namespace = entry.getKey().namespace.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(namespace.length);
+        out.write(namespace);
+        out.writeInt(entry.getKey().key.length);
+        out.write(entry.getKey().key);
+        out.writeInt(entry.getValue().length);
+        out.write(entry.getValue());
+        ++count;
+      }
+      out.writeInt(END_OF_ENTRIES);
+      out.flush();
+      // The checksum itself is not part of the checksum
+      new DataOutputStream(fileOut).writeLong(crc.getValue());
+      fileOut.getChannel().force(true);
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return count;
+  }
+
+  /**
+   * Hand every entry of a valid snapshot to the consumer. Nothing is handed over unless the whole file checks out, so
+   * the file is read twice: once for the checksum and once for the entries. Stops early if the calling thread is
+   * interrupted.
+   *
+   * @return The number of entries read, or -1 if the file is missing, stale or corrupt
+   */
+  public static int read(File file, BiConsumer<NamedKey, byte[]> consumer) throws IOException
+  {
+    if (!file.isFile()) {
+      return -1;
+    }
+    final long size = file.length();
+    if (size < Integer.BYTES * 3 + Long.BYTES) {
+      log.warn("Ignoring truncated cache snapshot [%s]", file);
+      return -1;
+    }
+    if (!checksumMatches(file, size)) {
+      log.warn("Ignoring corrupt cache snapshot [%s]", file);
+      return -1;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+      if (in.readInt() != MAGIC) {
+        log.warn("Ignoring [%s], not a cache snapshot", file);
+        return -1;
+      }
+      final int version = in.readInt();
+      if (version != VERSION) {
+        log.warn("Ignoring cache snapshot [%s] with version [%d], expected [%d]", file, version, VERSION);
+        return -1;
+      }
+      int count = 0;
+      try {
+        for (int namespaceLength = in.readInt(); namespaceLength != END_OF_ENTRIES; namespaceLength = in.readInt()) {
+          if (Thread.currentThread().isInterrupted()) {
+            break;
+          }
+          final String namespace = new String(bytes(in, namespaceLength, size), StandardCharsets.UTF_8);
+          final byte[] key = bytes(in, in.readInt(), size);
+          final byte[] value = bytes(in, in.readInt(), size);
+          consumer.accept(new NamedKey(namespace, key), value);
+          ++count;
+        }
+      }
+      catch (EOFException | IllegalArgumentException e) {
+        // Checksum matched but the content doesn't parse, some other writer
+        log.warn(e, "Malformed cache snapshot [%s], stopped after [%,d] entries", file, count);
+      }
+      return count;
+    }
+  }
+
+  /**
+   * @return If the CRC32 of everything but the last 8 bytes is the last 8 bytes
+   */
+  private static boolean checksumMatches(File file, long size) throws IOException
+  {
+    final CRC32 crc = new CRC32();
+    try (InputStream in = new FileInputStream(file)) {
+      final byte[] chunk = new byte[BUFFER_SIZE];
+      long remaining = size - Long.BYTES;
+      while (remaining > 0) {
+        final int read = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+        if (read < 0) {
+          return false;
+        }
+        crc.update(chunk, 0, read);
+        remaining -= read;
+      }
+      return crc.getValue() == new DataInputStream(in).readLong();
+    }
+    catch (EOFException e) {
+      // Shrunk while reading
+      return false;
+    }
+  }
+
+  private static byte[] bytes(DataInputStream in, int length, long fileSize) throws IOException
+  {
+    if (length < 0 || length > fileSize) {
+      throw new IllegalArgumentException(String.format("Bad length [%d]", length));
+    }
+    final byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
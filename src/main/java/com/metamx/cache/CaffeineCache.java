@@ -20,109 +20,1059 @@
 package com.metamx.cache;
 
 import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheWriter;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Maps;
-import com.google.common.primitives.Chars;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Iterables;
 import com.google.common.primitives.Ints;
+import com.metamx.common.IAE;
+import com.metamx.common.concurrent.ScheduledExecutors;
+import com.metamx.common.lifecycle.LifecycleStart;
+import com.metamx.common.lifecycle.LifecycleStop;
 import com.metamx.common.logger.Logger;
 import com.metamx.emitter.service.ServiceEmitter;
 import com.metamx.emitter.service.ServiceMetricEvent;
+import io.druid.concurrent.Execs;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.OptionalLong;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import javax.annotation.Nullable;
-import net.jpountz.lz4.LZ4Compressor;
-import net.jpountz.lz4.LZ4Factory;
-import net.jpountz.lz4.LZ4FastDecompressor;
+import javax.annotation.concurrent.GuardedBy;
+import net.jpountz.lz4.LZ4Exception;
+import org.joda.time.Duration;
 
 public class CaffeineCache implements io.druid.client.cache.Cache
 {
   private static final Logger log = new Logger(CaffeineCache.class);
-  private static final int FIXED_COST = 8; // Minimum cost in "weight" per entry;
-  private final Cache<NamedKey, byte[]> cache;
-  private final AtomicReference<CacheStats> priorStats = new AtomicReference<>(null);
+  // Heap bytes per entry besides the key and value arrays, assuming compressed oops: the NamedKey (24), Caffeine's node
+  // (48) and the hash table node (32) and slot (8). The namespace string is interned, so it is shared by the entries.
+  private static final int ENTRY_OVERHEAD = 24 + 48 + 32 + 8;
+  private static final int ARRAY_HEADER_SIZE = 16;
+  // Weak, so the namespaces of dropped segments don't linger once their entries are gone
+  private static final Interner<String> NAMESPACES = Interners.newWeakInterner();
+  private static final int MAX_SCRATCH_SIZE = 1 << 20;
+  private static final int FORMAT_RAW_HEADER_SIZE = 1;
+  private static final int HEADER_SIZE = 1 + Ints.BYTES;
+  private static final int SHED_BATCH_SIZE = 1024;
+  private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[4096]);
+  // Longest prefix first, the default partition is last. Each partition is its consecutive shards
+  private final List<CachePartition> partitions;
+  private final int shards;
   private final CaffeineCacheConfig config;
-
+  // The distinct maintenance executors of the shards which have a queue to report
+  private final List<ThreadPoolExecutor> executorPools;
+  @Nullable
+  private final OffHeapStore offHeapStore;
+  @Nullable
+  private final NamespaceIndex namespaceIndex;
+  @Nullable
+  private final DiskTier diskTier;
+  @Nullable
+  private final ValueDedup dedup;
+  // Also tells which promoted entries keep their remaining lifetime
+  @Nullable
+  private final NamespaceExpiry namespaceExpiry;
+  @Nullable
+  private final CacheCodec codec;
+  private final CacheCodec[] decoders;
+  private final ForkJoinPool bulkPool;
+  private volatile ScheduledExecutorService snapshotExec = null;
+  // Until the startup load finishes the cache holds part of the snapshot, which mustn't replace the whole of it
+  private volatile boolean snapshotLoaded = false;
+  @Nullable
+  private volatile AccessTrace trace = null;
+  @Nullable
+  private final CacheSizeTuner sizeTuner;
+  @Nullable
+  private final MemoryPressureMonitor pressureMonitor;
+  // Sheds off the JMX notification thread, one thread so shedding and restoring stay in order
+  @Nullable
+  private final ExecutorService pressureExec;
+  private final Object capacityLock = new Object();
+  // The partition maximums from before memory pressure, null while not under pressure
+  @GuardedBy("capacityLock")
+  private long[] pressureMaximums = null;
+  @Nullable
+  private final CostAdmission costAdmission;
+  @Nullable
+  private final AsyncWriter asyncWriter;
+  // Values being computed by getOrCompute, for the concurrent misses on the same key to wait for
+  private final ConcurrentMap<NamedKey, CompletableFuture<byte[]>> computing = new ConcurrentHashMap<>();
+  private final LongAdder coalescedMisses = new LongAdder();
+  private final AtomicLong priorCoalescedMisses = new AtomicLong(0);
+  private final PayloadStats payloadStats = new PayloadStats();
+  // Raw bytes per stored byte as of the last monitor tick, to estimate what a value will weigh before compressing it
+  private volatile double compressionRatio = 1.0;
+  private final LatencyRecorder getLatency;
+  private final LatencyRecorder putLatency;
+  private final LatencyRecorder getBulkLatency;
+  private final LatencyRecorder compressLatency;
+  private final LatencyRecorder decompressLatency;
 
   public static CaffeineCache create(final CaffeineCacheConfig config)
   {
-    return create(config, config.createExecutor());
+    final List<Executor> executors = new ArrayList<>();
+    for (int i = 0; i < config.getShards(); ++i) {
+      executors.add(config.createExecutor(config.getShards()));
+    }
+    return create(config, executors);
   }
 
   // Used in testing
   public static CaffeineCache create(final CaffeineCacheConfig config, @Nullable final Executor executor)
+  {
+    return create(config, Collections.nCopies(Math.max(config.getShards(), 0), executor));
+  }
+
+  /**
+   * @param executors The maintenance executor of each shard
+   */
+  static CaffeineCache create(final CaffeineCacheConfig config, final List<Executor> executors)
+  {
+    final int shards = config.getShards();
+    if (shards < 1) {
+      throw new IAE("shards must be at least 1, got [%d]", shards);
+    }
+    // Off heap the cached value is only a handle, the payload lives in the store until the entry is removed
+    final OffHeapStore offHeapStore = config.isOffHeap() ? new OffHeapStore(config.getOffHeapSlabSize()) : null;
+    final NamespaceIndex namespaceIndex = config.isEvictOnClose() ? new NamespaceIndex() : null;
+    final DiskTier diskTier = createDiskTier(config);
+    final ValueDedup dedup = config.isDedup() ? new ValueDedup(offHeapStore) : null;
+    // Shared by all the partitions, so each namespace is matched against the rules once
+    final NamespaceExpiry namespaceExpiry = config.getExpireRules().isEmpty()
+                                            ? null
+                                            : new NamespaceExpiry(config.getExpireRules(), config.getExpireAfter());
+
+    final List<Map.Entry<String, Long>> configured = new ArrayList<>(config.getPartitions().entrySet());
+    configured.sort((a, b) -> Integer.compare(b.getKey().length(), a.getKey().length()));
+    final List<CachePartition> partitions = new ArrayList<>();
+    long partitionedBytes = 0;
+    for (Map.Entry<String, Long> partition : configured) {
+      for (int shard = 0; shard < shards; ++shard) {
+        partitions.add(
+            new CachePartition(
+                partition.getKey(),
+                partition.getKey(),
+                buildCache(
+                    config,
+                    executors.get(shard),
+                    shardSize(partition.getValue(), shards, shard),
+                    offHeapStore,
+                    namespaceIndex,
+                    diskTier,
+                    dedup,
+                    namespaceExpiry
+                )
+            )
+        );
+      }
+      partitionedBytes += partition.getValue();
+    }
+    // The default partition needs some room of its own, a maximum weight of zero would admit nothing
+    if (config.getSizeInBytes() >= 0 && !partitions.isEmpty() && partitionedBytes >= config.getSizeInBytes()) {
+      throw new IAE(
+          "Partitions add up to [%,d] bytes which leaves nothing of sizeInBytes [%,d] for other namespaces",
+          partitionedBytes,
+          config.getSizeInBytes()
+      );
+    }
+    // Whatever the partitions don't claim belongs to every other namespace
+    final long defaultSize = config.getSizeInBytes() >= 0 ? config.getSizeInBytes() - partitionedBytes : -1;
+    for (int shard = 0; shard < shards; ++shard) {
+      partitions.add(
+          new CachePartition(
+              CachePartition.DEFAULT_NAME,
+              "",
+              buildCache(
+                  config,
+                  executors.get(shard),
+                  shardSize(defaultSize, shards, shard),
+                  offHeapStore,
+                  namespaceIndex,
+                  diskTier,
+                  dedup,
+                  namespaceExpiry
+              )
+          )
+      );
+    }
+
+    final CaffeineCache cache = new CaffeineCache(
+        partitions,
+        shards,
+        config,
+        offHeapStore,
+        namespaceIndex,
+        diskTier,
+        dedup,
+        namespaceExpiry,
+        executors
+    );
+    if (namespaceIndex != null) {
+      namespaceIndex.setContains(key -> cache.cacheFor(key).asMap().containsKey(key));
+    }
+    return cache;
+  }
+
+  /**
+   * @return The maximum weight of the shard, the last shard also takes the remainder so the shards add up to
+   * sizeInBytes
+   */
+  private static long shardSize(long sizeInBytes, int shards, int shard)
+  {
+    if (sizeInBytes < 0) {
+      return -1;
+    }
+    return sizeInBytes / shards + (shard == shards - 1 ? sizeInBytes % shards : 0);
+  }
+
+  @Nullable
+  private static DiskTier createDiskTier(final CaffeineCacheConfig config)
+  {
+    if (config.getDiskTierPath() == null) {
+      return null;
+    }
+    if (config.getSizeInBytes() < 0) {
+      throw new IAE("diskTierPath requires sizeInBytes");
+    }
+    try {
+      return new DiskTier(
+          new File(config.getDiskTierPath()),
+          config.getDiskTierSizeInBytes(),
+          config.getDiskTierSegmentSize()
+      );
+    }
+    catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private static Cache<NamedKey, byte[]> buildCache(
+      final CaffeineCacheConfig config,
+      @Nullable final Executor executor,
+      final long sizeInBytes,
+      @Nullable final OffHeapStore offHeapStore,
+      @Nullable final NamespaceIndex namespaceIndex,
+      @Nullable final DiskTier diskTier,
+      @Nullable final ValueDedup dedup,
+      @Nullable final NamespaceExpiry namespaceExpiry
+  )
   {
     Caffeine<Object, Object> builder = Caffeine.newBuilder().recordStats();
-    if (config.getExpireAfter() >= 0) {
+    if (namespaceExpiry != null) {
+      builder.expireAfter(namespaceExpiry);
+    } else if (config.getExpireAfter() >= 0) {
       builder
           .expireAfterAccess(config.getExpireAfter(), TimeUnit.MILLISECONDS);
     }
-    if (config.getSizeInBytes() >= 0) {
+    if (sizeInBytes >= 0) {
       builder
-          .maximumWeight(config.getSizeInBytes())
-          .weigher((NamedKey key, byte[] value) -> value.length
-                                                   + key.key.length
-                                                   + key.namespace.length() * Chars.BYTES
-                                                   + FIXED_COST);
+          .maximumWeight(sizeInBytes)
+          .weigher((NamedKey key, byte[] value) -> weigh(offHeapStore, dedup, key, value));
+    }
+    // Set once built, the writer needs the policy to know when the evicted entry would have expired
+    final AtomicReference<Cache<NamedKey, byte[]>> built = new AtomicReference<>();
+    if (diskTier != null) {
+      // Caffeine calls the writer from whichever thread evicts, often the one doing a put or a promotion, which then
+      // copies the spilled entry into the mapped segment. Cheaper than handing it off, as the entry is on heap here
+      builder.writer(
+          new CacheWriter<NamedKey, byte[]>()
+          {
+            @Override
+            public void write(NamedKey key, byte[] value)
+            {
+            }
+
+            @Override
+            public void delete(NamedKey key, @Nullable byte[] value, RemovalCause cause)
+            {
+              // Still in the cache here, and before an off heap payload is released by the removal listener
+              if (cause != RemovalCause.SIZE || value == null) {
+                return;
+              }
+              final long expiresAt = expiresAt(built.get(), key);
+              final byte[] stored = offHeapStore == null ? value : offHeapStore.load(value);
+              if (expiresAt > System.currentTimeMillis() && stored != null) {
+                diskTier.add(key, stored, expiresAt);
+              }
+            }
+          }
+      );
+    }
+    if (offHeapStore != null || namespaceIndex != null || dedup != null) {
+      builder.removalListener(
+          (NamedKey key, byte[] value, RemovalCause cause) -> {
+            if (dedup != null) {
+              dedup.release(key, value);
+            } else if (offHeapStore != null) {
+              offHeapStore.release(value);
+            }
+            if (namespaceIndex != null && cause != RemovalCause.REPLACED) {
+              namespaceIndex.remove(key);
+            }
+          }
+      );
     }
     if (executor != null) {
       builder.executor(executor);
     }
-    return new CaffeineCache(builder.build(), config);
+    final Cache<NamedKey, byte[]> cache = builder.build();
+    built.set(cache);
+    return cache;
+  }
+
+  /**
+   * @return When the entry of the key will expire, in ms since the epoch. Long.MAX_VALUE if the cache doesn't expire
+   * entries, or the current time if the key is not in the cache
+   */
+  private static long expiresAt(Cache<NamedKey, byte[]> cache, NamedKey key)
+  {
+    final Policy<NamedKey, byte[]> policy = cache.policy();
+    final long now = System.currentTimeMillis();
+    final OptionalLong remaining;
+    if (policy.expireVariably().isPresent()) {
+      remaining = policy.expireVariably().get().getExpiresAfter(key, TimeUnit.MILLISECONDS);
+    } else if (policy.expireAfterAccess().isPresent()) {
+      final Policy.Expiration<NamedKey, byte[]> expiration = policy.expireAfterAccess().get();
+      final OptionalLong age = expiration.ageOf(key, TimeUnit.MILLISECONDS);
+      remaining = age.isPresent()
+                  ? OptionalLong.of(expiration.getExpiresAfter(TimeUnit.MILLISECONDS) - age.getAsLong())
+                  : OptionalLong.empty();
+    } else {
+      return Long.MAX_VALUE;
+    }
+    if (!remaining.isPresent()) {
+      return now;
+    }
+    return remaining.getAsLong() > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + remaining.getAsLong();
   }
 
   public CaffeineCache(final Cache<NamedKey, byte[]> cache, CaffeineCacheConfig config)
   {
-    this.cache = cache;
+    this(
+        Collections.singletonList(new CachePartition(CachePartition.DEFAULT_NAME, "", cache)),
+        1,
+        config,
+        null,
+        null,
+        null,
+        null,
+        null,
+        Collections.emptyList()
+    );
+  }
+
+  /**
+   * @param partitions      Ordered by descending prefix length, ending with the default partition, with the shards of
+   *                        each partition next to each other
+   * @param shards          The number of shards of every partition
+   * @param namespaceIndex  Index maintained by the removal listener of the partitions, if null closing a namespace
+   *                        scans the whole partition
+   * @param diskTier        Tier the cache writer of the partitions moves size evicted entries to
+   * @param dedup           Shares the stored values of the partitions, released by their removal listener
+   * @param namespaceExpiry The expiry shared by the partitions when expireRules are configured
+   * @param executors       The maintenance executors of the shards, to report their queues
+   */
+  CaffeineCache(
+      final List<CachePartition> partitions,
+      int shards,
+      CaffeineCacheConfig config,
+      @Nullable OffHeapStore offHeapStore,
+      @Nullable NamespaceIndex namespaceIndex,
+      @Nullable DiskTier diskTier,
+      @Nullable ValueDedup dedup,
+      @Nullable NamespaceExpiry namespaceExpiry,
+      List<Executor> executors
+  )
+  {
+    this.partitions = partitions;
+    this.shards = shards;
     this.config = config;
+    this.offHeapStore = offHeapStore;
+    this.namespaceIndex = namespaceIndex;
+    this.diskTier = diskTier;
+    this.dedup = dedup;
+    if (dedup != null) {
+      dedup.setChargeListener(this::reweigh);
+    }
+    this.namespaceExpiry = namespaceExpiry;
+    this.executorPools = executors.stream()
+                                  .filter(ThreadPoolExecutor.class::isInstance)
+                                  .map(ThreadPoolExecutor.class::cast)
+                                  .distinct()
+                                  .collect(Collectors.toList());
+    this.codec = config.createCodec();
+    this.decoders = CacheCodec.decoders(codec);
+    this.bulkPool = config.getBulkParallelism() > 0
+                    ? new ForkJoinPool(config.getBulkParallelism())
+                    : ForkJoinPool.commonPool();
+    final boolean latencyMetrics = config.isLatencyMetrics();
+    this.getLatency = new LatencyRecorder("query/cache/caffeine/get", latencyMetrics);
+    this.putLatency = new LatencyRecorder("query/cache/caffeine/put", latencyMetrics);
+    this.getBulkLatency = new LatencyRecorder("query/cache/caffeine/getBulk", latencyMetrics);
+    this.compressLatency = new LatencyRecorder("query/cache/caffeine/compress", latencyMetrics);
+    this.decompressLatency = new LatencyRecorder("query/cache/caffeine/decompress", latencyMetrics);
+    this.sizeTuner = config.isAutoResize() ? CacheSizeTuner.create(partitions, config) : null;
+    if (config.getPressureShedFraction() > 0) {
+      if (config.getSizeInBytes() < 0) {
+        throw new IAE("pressureShedFraction requires sizeInBytes");
+      }
+      final ExecutorService pressureExec = Execs.singleThreaded("CaffeinePressure-%s");
+      this.pressureExec = pressureExec;
+      this.pressureMonitor = new MemoryPressureMonitor(
+          config.getPressureThreshold(),
+          config.getPressureReliefThreshold(),
+          () -> pressureExec.execute(this::shedColdest),
+          () -> pressureExec.execute(this::restoreCapacity)
+      );
+    } else {
+      this.pressureExec = null;
+      this.pressureMonitor = null;
+    }
+    if (config.isCostAdmission()) {
+      if (config.getSizeInBytes() < 0) {
+        throw new IAE("costAdmission requires sizeInBytes");
+      }
+      this.costAdmission = new CostAdmission(config.getCostAdmissionMinRatio());
+    } else {
+      this.costAdmission = null;
+    }
+    this.asyncWriter = config.isAsyncPut()
+                       ? new AsyncWriter(
+                           config.createAsyncPutExecutor(),
+                           config.getAsyncPutMaxPending(),
+                           config.getAsyncPutMaxPendingBytes()
+                       )
+                       : null;
   }
 
   @Override
   public byte[] get(NamedKey key)
   {
-    return deserialize(cache.getIfPresent(key));
+    final long start = getLatency.start();
+    final byte[] stored = lookup(key);
+    trace(key, stored);
+    final byte[] value = deserialize(key, load(stored));
+    getLatency.record(start);
+    return value;
   }
 
+  /**
+   * With asyncPut enabled the value is compressed and put in the background, so it must not be modified afterwards
+   */
   @Override
   public void put(NamedKey key, byte[] value)
   {
-    cache.put(key, serialize(value));
+    final long start = putLatency.start();
+    if (asyncWriter != null) {
+      asyncWriter.submit(value.length, () -> store(key, value, 0, value.length));
+    } else {
+      store(key, value, 0, value.length);
+    }
+    putLatency.record(start);
+  }
+
+  /**
+   * Put a value along with the time it took to compute it. With costAdmission enabled, a full cache does not admit
+   * values which are cheap to recompute for their size, and they are not even compressed.
+   */
+  public void put(NamedKey key, byte[] value, long computeMillis)
+  {
+    if (costAdmission != null
+        && !costAdmission.admit(computeMillis, value.length, isFull(partitionOf(key), value.length))) {
+      return;
+    }
+    put(key, value);
+  }
+
+  /**
+   * Get the value for key, computing and putting it on a miss. Concurrent misses on the same key wait for the first
+   * one to compute and compress the value instead of each doing it again.
+   *
+   * @param compute Returns the value, or null if nothing should be cached. Runs on the calling thread
+   *
+   * @return The cached or computed value
+   */
+  @Nullable
+  public byte[] getOrCompute(NamedKey key, Supplier<byte[]> compute)
+  {
+    final byte[] cached = get(key);
+    if (cached != null) {
+      return cached;
+    }
+    final CompletableFuture<byte[]> future = new CompletableFuture<>();
+    final CompletableFuture<byte[]> other = computing.putIfAbsent(key, future);
+    if (other != null) {
+      coalescedMisses.increment();
+      final byte[] value = await(other);
+      // Each caller gets its own copy, like from get
+      return value == null ? null : value.clone();
+    }
+    try {
+      // The computation which missed before this one may have finished in between, asMap() doesn't count a request
+      byte[] value = deserialize(key, load(cacheFor(key).asMap().get(key)));
+      if (value == null) {
+        value = compute.get();
+        if (value != null) {
+          put(key, value);
+        }
+      }
+      future.complete(value);
+      return value;
+    }
+    catch (RuntimeException | Error e) {
+      future.completeExceptionally(e);
+      throw e;
+    }
+    finally {
+      computing.remove(key, future);
+    }
+  }
+
+  private static byte[] await(CompletableFuture<byte[]> future)
+  {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Throwables.propagate(e);
+    }
+    catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Zero copy variant of {@link #get(NamedKey)}. Values stored uncompressed on heap are returned as a read-only view of
+   * the cached bytes, everything else is decompressed into a new heap buffer.
+   *
+   * @return The value positioned at 0, or null on a miss
+   */
+  @Nullable
+  public ByteBuffer getByteBuffer(NamedKey key)
+  {
+    final long start = getLatency.start();
+    final byte[] stored = lookup(key);
+    trace(key, stored);
+    final byte[] bytes = load(stored);
+    final ByteBuffer value;
+    if (bytes == null) {
+      value = null;
+    } else if (bytes[0] == CacheCodec.FORMAT_RAW) {
+      value = ByteBuffer.wrap(bytes, FORMAT_RAW_HEADER_SIZE, bytes.length - FORMAT_RAW_HEADER_SIZE)
+                        .slice()
+                        .asReadOnlyBuffer();
+    } else {
+      final byte[] decoded = deserialize(key, bytes);
+      value = decoded == null ? null : ByteBuffer.wrap(decoded);
+    }
+    getLatency.record(start);
+    return value;
+  }
+
+  /**
+   * Read the value for key into {@code dst} starting at its position, without allocating an intermediate array for
+   * compressed values. Lets callers reuse (or pool) their own buffers for large results.
+   *
+   * @return The length of the value, which dst's position has been advanced by, or -1 on a miss
+   *
+   * @throws java.nio.BufferOverflowException if the value does not fit in the remaining bytes of dst
+   * @throws IllegalArgumentException          if dst is read only
+   */
+  public int get(NamedKey key, ByteBuffer dst)
+  {
+    if (dst.isReadOnly()) {
+      throw new IAE("Can't read cache values into a read only buffer");
+    }
+    final long start = getLatency.start();
+    final byte[] stored = lookup(key);
+    trace(key, stored);
+    final byte[] bytes = load(stored);
+    int length;
+    if (bytes == null) {
+      length = -1;
+    } else if (bytes[0] == CacheCodec.FORMAT_RAW) {
+      dst.put(bytes, FORMAT_RAW_HEADER_SIZE, bytes.length - FORMAT_RAW_HEADER_SIZE);
+      length = bytes.length - FORMAT_RAW_HEADER_SIZE;
+    } else {
+      length = ByteBuffer.wrap(bytes).getInt(1);
+      if (dst.remaining() < length) {
+        throw new BufferOverflowException();
+      }
+      final long decompressStart = decompressLatency.start();
+      if (decompress(key, bytes, dst)) {
+        decompressLatency.record(decompressStart);
+        dst.position(dst.position() + length);
+      } else {
+        length = -1;
+      }
+    }
+    getLatency.record(start);
+    return length;
+  }
+
+  /**
+   * Put the remaining bytes of value. The position of value is left untouched. With asyncPut enabled the bytes are
+   * copied, so the buffer can be reused as soon as this returns.
+   */
+  public void put(NamedKey key, ByteBuffer value)
+  {
+    final long start = putLatency.start();
+    if (value.hasArray() && asyncWriter == null) {
+      store(key, value.array(), value.arrayOffset() + value.position(), value.remaining());
+    } else {
+      final byte[] copy = new byte[value.remaining()];
+      value.duplicate().get(copy);
+      if (asyncWriter != null) {
+        asyncWriter.submit(copy.length, () -> store(key, copy, 0, copy.length));
+      } else {
+        store(key, copy, 0, copy.length);
+      }
+    }
+    putLatency.record(start);
+  }
+
+  private void store(NamedKey key, byte[] value, int offset, int length)
+  {
+    final byte[] stored = serializeAndStore(key, value, offset, length);
+    if (stored != null) {
+      putStored(key, stored);
+    }
+  }
+
+  /**
+   * @return If the value would not fit as of the last monitor tick, estimating its stored size by the compression ratio
+   */
+  private boolean isFull(CachePartition partition, int length)
+  {
+    return (long) (length / compressionRatio) > partition.getHeadroom();
+  }
+
+  private void putStored(NamedKey key, byte[] stored)
+  {
+    key = intern(key);
+    if (diskTier != null) {
+      // Stale now. Removed first, so if the new value is evicted right away its copy on disk stays
+      diskTier.remove(key);
+    }
+    final byte[] previous = cacheFor(key).asMap().put(key, stored);
+    if (dedup != null && previous == stored) {
+      // The key got back the body it held, which Caffeine doesn't report as a removal. Drop the extra reference
+      dedup.release(key, stored);
+    }
+    final AccessTrace trace = this.trace;
+    if (trace != null && trace.isSampled(key)) {
+      trace.record(AccessTrace.OP_PUT, key, weigh(offHeapStore, dedup, key, stored));
+    }
+    if (namespaceIndex != null) {
+      namespaceIndex.add(key);
+    }
   }
 
   @Override
   public Map<NamedKey, byte[]> getBulk(Iterable<NamedKey> keys)
+  {
+    final long start = getBulkLatency.start();
+    final Map<NamedKey, byte[]> heapPresent = getAllPresent(keys);
+    final Map<NamedKey, byte[]> present = diskTier == null ? heapPresent : promoteAll(keys, heapPresent);
+    if (trace != null) {
+      for (NamedKey key : keys) {
+        trace(key, present.get(key));
+      }
+    }
+    final Map<NamedKey, byte[]> values = isParallelBulk(present) ? parallelDeserialize(present) : deserialize(present);
+    getBulkLatency.record(start);
+    return values;
+  }
+
+  /**
+   * @return The stored value of the key, promoted from the disk tier on a heap miss
+   */
+  @Nullable
+  private byte[] lookup(NamedKey key)
+  {
+    final Cache<NamedKey, byte[]> cache = cacheFor(key);
+    final byte[] stored = cache.getIfPresent(key);
+    if (stored != null || diskTier == null) {
+      return stored;
+    }
+    return promote(cache, key);
+  }
+
+  /**
+   * Move the key from the disk tier back into the heap
+   *
+   * @return The stored value, or null if the key is not in the disk tier
+   */
+  @Nullable
+  private byte[] promote(Cache<NamedKey, byte[]> cache, NamedKey key)
+  {
+    final DiskTier.Entry entry = diskTier.take(key);
+    if (entry == null) {
+      return null;
+    }
+    final byte[] stored = offHeapStore == null ? entry.getValue() : offHeapStore.store(entry.getValue());
+    if (stored == null) {
+      return null;
+    }
+    final NamedKey interned = intern(key);
+    final byte[] current = cache.asMap().putIfAbsent(interned, stored);
+    if (current != null) {
+      // Put meanwhile, which is fresher
+      if (offHeapStore != null) {
+        offHeapStore.release(stored);
+      }
+      return current;
+    }
+    if (namespaceExpiry != null && namespaceExpiry.expiresAfterWrite(interned.namespace)) {
+      // Keeps counting from the original write rather than starting over
+      final long remaining = Math.max(entry.getExpiresAt() - System.currentTimeMillis(), 0);
+      cache.policy().expireVariably().ifPresent(
+          expiration -> expiration.setExpiresAfter(interned, remaining, TimeUnit.MILLISECONDS)
+      );
+    }
+    if (namespaceIndex != null) {
+      namespaceIndex.add(interned);
+    }
+    return stored;
+  }
+
+  /**
+   * @return The present entries, plus the keys promoted from the disk tier
+   */
+  private Map<NamedKey, byte[]> promoteAll(Iterable<NamedKey> keys, Map<NamedKey, byte[]> present)
+  {
+    Map<NamedKey, byte[]> all = present;
+    for (NamedKey key : keys) {
+      if (!present.containsKey(key)) {
+        final byte[] stored = promote(cacheFor(key), key);
+        if (stored != null) {
+          if (all == present) {
+            all = new HashMap<>(present);
+          }
+          all.put(key, stored);
+        }
+      }
+    }
+    return all;
+  }
+
+  private void trace(NamedKey key, @Nullable byte[] stored)
+  {
+    final AccessTrace trace = this.trace;
+    // Sampled before weighing, most keys aren't traced
+    if (trace == null || !trace.isSampled(key)) {
+      return;
+    }
+    if (stored == null) {
+      trace.record(AccessTrace.OP_MISS, key, 0);
+    } else {
+      trace.record(AccessTrace.OP_HIT, key, weigh(offHeapStore, dedup, key, stored));
+    }
+  }
+
+  private Map<NamedKey, byte[]> deserialize(Map<NamedKey, byte[]> present)
   {
     // The assumption here is that every value is accessed at least once. Materializing here ensures deserialize is only
     // called *once* per value.
-    return ImmutableMap.copyOf(Maps.transformValues(cache.getAllPresent(keys), this::deserialize));
+    final ImmutableMap.Builder<NamedKey, byte[]> builder = ImmutableMap.builder();
+    for (Map.Entry<NamedKey, byte[]> entry : present.entrySet()) {
+      final byte[] value = deserialize(entry.getKey(), load(entry.getValue()));
+      // Off heap values can be released between the lookup and the load
+      if (value != null) {
+        builder.put(entry.getKey(), value);
+      }
+    }
+    return builder.build();
+  }
+
+  private Map<NamedKey, byte[]> getAllPresent(Iterable<NamedKey> keys)
+  {
+    if (partitions.size() == 1) {
+      return partitions.get(0).getCache().getAllPresent(keys);
+    }
+    final Map<Cache<NamedKey, byte[]>, List<NamedKey>> keysByCache = new HashMap<>();
+    for (NamedKey key : keys) {
+      keysByCache.computeIfAbsent(cacheFor(key), cache -> new ArrayList<>()).add(key);
+    }
+    final Map<NamedKey, byte[]> present = new HashMap<>();
+    for (Map.Entry<Cache<NamedKey, byte[]>, List<NamedKey>> entry : keysByCache.entrySet()) {
+      present.putAll(entry.getKey().getAllPresent(entry.getValue()));
+    }
+    return present;
+  }
+
+  private boolean isParallelBulk(Map<NamedKey, byte[]> present)
+  {
+    // Shut down by stop()
+    if (present.size() < 2 || bulkPool.isShutdown()) {
+      return false;
+    }
+    if (present.size() >= config.getBulkParallelMinEntries()) {
+      return true;
+    }
+    long bytes = 0;
+    for (byte[] value : present.values()) {
+      bytes += payloadLength(offHeapStore, value);
+    }
+    return bytes >= config.getBulkParallelMinBytes();
+  }
+
+  private Map<NamedKey, byte[]> parallelDeserialize(Map<NamedKey, byte[]> present)
+  {
+    final List<Map.Entry<NamedKey, byte[]>> entries = new ArrayList<>(present.entrySet());
+    final Callable<byte[][]> task = () -> entries
+        .parallelStream()
+        .map(entry -> deserialize(entry.getKey(), load(entry.getValue())))
+        .toArray(byte[][]::new);
+    final byte[][] values;
+    try {
+      // A parallel stream forks into the pool it is started from
+      values = bulkPool.submit(task).get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Throwables.propagate(e);
+    }
+    catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+    final ImmutableMap.Builder<NamedKey, byte[]> builder = ImmutableMap.builder();
+    for (int i = 0; i < values.length; ++i) {
+      if (values[i] != null) {
+        builder.put(entries.get(i).getKey(), values[i]);
+      }
+    }
+    return builder.build();
   }
 
   // This is completely racy with put. Any values missed should be evicted later anyways. So no worries.
   @Override
   public void close(String namespace)
   {
-    if (config.isEvictOnClose()) {
-      cache.asMap().keySet().removeIf(key -> key.namespace.equals(namespace));
+    if (!config.isEvictOnClose()) {
+      return;
+    }
+    if (diskTier != null) {
+      diskTier.removeNamespace(namespace);
+    }
+    if (namespaceIndex != null) {
+      for (NamedKey key : namespaceIndex.removeNamespace(namespace)) {
+        cacheFor(key).invalidate(key);
+      }
+    } else {
+      final int first = partitionFor(namespace);
+      for (CachePartition shard : partitions.subList(first, first + shards)) {
+        shard.getCache().asMap().keySet().removeIf(key -> key.namespace.equals(namespace));
+      }
+    }
+  }
+
+  @LifecycleStart
+  public void start()
+  {
+    if (pressureMonitor != null) {
+      pressureMonitor.start();
+    }
+    if (config.getTracePath() != null) {
+      final File file = new File(config.getTracePath());
+      try {
+        trace = new AccessTrace(file, config.getTraceSampleRate(), config.getTraceMaxBytes());
+      }
+      catch (IOException e) {
+        log.warn(e, "Unable to open access trace [%s]", file);
+      }
+    }
+    if (config.getSnapshotPath() == null) {
+      return;
+    }
+    snapshotExec = Execs.scheduledSingleThreaded("CaffeineSnapshot-%s");
+    snapshotExec.submit(this::loadSnapshot);
+    if (config.getSnapshotPeriod() > 0) {
+      final Duration period = new Duration(config.getSnapshotPeriod());
+      ScheduledExecutors.scheduleWithFixedDelay(snapshotExec, period, period, this::writeSnapshot);
+    }
+  }
+
+  @LifecycleStop
+  public void stop()
+  {
+    if (pressureMonitor != null) {
+      pressureMonitor.stop();
+      pressureExec.shutdownNow();
+    }
+    // Only a pool of its own, the common pool is shared with the rest of the process
+    if (bulkPool != ForkJoinPool.commonPool()) {
+      bulkPool.shutdown();
+    }
+    final AccessTrace trace = this.trace;
+    if (trace != null) {
+      this.trace = null;
+      trace.close();
+    }
+    if (diskTier != null) {
+      diskTier.close();
+    }
+    if (snapshotExec == null) {
+      return;
+    }
+    snapshotExec.shutdownNow();
+    if (snapshotLoaded) {
+      writeSnapshot();
+    } else {
+      log.info("Not writing cache snapshot [%s], its load didn't finish", config.getSnapshotPath());
+    }
+  }
+
+  /**
+   * Put every entry of the snapshot which isn't already cached
+   *
+   * @return The number of entries in the snapshot, or -1 if there is no usable snapshot
+   */
+  int loadSnapshot()
+  {
+    final File file = new File(config.getSnapshotPath());
+    try {
+      final int count = CacheSnapshot.read(
+          file,
+          (snapshotKey, value) -> {
+            final NamedKey key = intern(snapshotKey);
+            if (!isDecodable(value)) {
+              return;
+            }
+            final byte[] stored = offHeapStore == null ? value : offHeapStore.store(value);
+            if (stored == null) {
+              return;
+            }
+            if (cacheFor(key).asMap().putIfAbsent(key, stored) != null) {
+              // Put since startup, which is fresher than the snapshot
+              if (offHeapStore != null) {
+                offHeapStore.release(stored);
+              }
+            } else if (namespaceIndex != null) {
+              namespaceIndex.add(key);
+            }
+          }
+      );
+      if (count >= 0) {
+        log.info("Loaded [%,d] entries from cache snapshot [%s]", count, file);
+      }
+      // Reading stops early when interrupted
+      snapshotLoaded = !Thread.currentThread().isInterrupted();
+      return count;
+    }
+    catch (IOException | RuntimeException e) {
+      // Runs in the background, nobody else would hear about it
+      log.warn(e, "Unable to load cache snapshot [%s]", file);
+      // Nothing usable to lose
+      snapshotLoaded = true;
+      return -1;
+    }
+  }
+
+  /**
+   * Write the hottest entries to the snapshot file, coldest first so the hottest are the most recent once loaded.
+   * Partitions get a share of the entries and bytes in proportion to their current entry count. Only the keys and
+   * stored values of the chosen entries are held, values are loaded from off heap one at a time as they're written.
+   */
+  synchronized void writeSnapshot()
+  {
+    long totalEntries = 0;
+    for (CachePartition partition : partitions) {
+      totalEntries += partition.getCache().estimatedSize();
+    }
+    final List<Map.Entry<NamedKey, byte[]>> stored = new ArrayList<>();
+    for (CachePartition partition : partitions) {
+      final Cache<NamedKey, byte[]> cache = partition.getCache();
+      final double share = (double) cache.estimatedSize() / Math.max(totalEntries, 1);
+      final int maxEntries = (int) Math.ceil(config.getSnapshotMaxEntries() * share);
+      final long maxBytes = (long) Math.ceil(config.getSnapshotMaxBytes() * share);
+      final Map<NamedKey, byte[]> hottest = cache
+          .policy().eviction()
+          .map(eviction -> eviction.hottest(maxEntries))
+          .orElseGet(() -> cache.asMap().entrySet().stream().limit(maxEntries).collect(
+              Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)
+          ));
+      final List<Map.Entry<NamedKey, byte[]>> partitionEntries = new ArrayList<>(hottest.size());
+      long bytes = 0;
+      for (Map.Entry<NamedKey, byte[]> entry : hottest.entrySet()) {
+        final byte[] value = entry.getValue();
+        bytes += entry.getKey().key.length + (offHeapStore == null ? value.length : OffHeapStore.length(value));
+        if (bytes > maxBytes) {
+          break;
+        }
+        partitionEntries.add(entry);
+      }
+      Collections.reverse(partitionEntries);
+      stored.addAll(partitionEntries);
+    }
+    // Loaded lazily while streaming to the file. Entries evicted since have no value left and are skipped
+    final Iterable<Map.Entry<NamedKey, byte[]>> entries = Iterables.filter(
+        Iterables.transform(
+            stored,
+            entry -> new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), load(entry.getValue()))
+        ),
+        entry -> entry.getValue() != null
+    );
+    final File file = new File(config.getSnapshotPath());
+    try {
+      final int count = CacheSnapshot.write(file, entries);
+      log.info("Wrote [%,d] entries to cache snapshot [%s]", count, file);
+    }
+    catch (IOException e) {
+      log.warn(e, "Unable to write cache snapshot [%s]", file);
     }
   }
 
   @Override
   public io.druid.client.cache.CacheStats getStats()
   {
-    final com.github.benmanes.caffeine.cache.stats.CacheStats stats = cache.stats();
-    final long size = cache
-        .policy().eviction()
-        .map(eviction -> eviction.isWeighted() ? eviction.weightedSize() : OptionalLong.empty())
-        .orElse(OptionalLong.empty()).orElse(-1);
+    CacheStats stats = CacheStats.empty();
+    long entries = 0;
+    long size = 0;
+    for (CachePartition partition : partitions) {
+      stats = stats.plus(partition.getCache().stats());
+      entries += partition.getCache().estimatedSize();
+      final OptionalLong partitionSize = partition.weightedSize();
+      size = size < 0 || !partitionSize.isPresent() ? -1 : size + partitionSize.getAsLong();
+    }
     return new io.druid.client.cache.CacheStats(
         stats.hitCount(),
         stats.missCount(),
-        cache.estimatedSize(),
+        entries,
         size,
         stats.evictionCount(),
         0,
@@ -139,13 +1089,22 @@ public class CaffeineCache implements io.druid.client.cache.Cache
   @Override
   public void doMonitor(ServiceEmitter emitter)
   {
-    final CacheStats oldStats = priorStats.get();
-    final CacheStats newStats = cache.stats();
-    final CacheStats deltaStats;
-    if (oldStats == null) {
-      deltaStats = newStats;
-    } else {
-      deltaStats = newStats.minus(oldStats);
+    CacheStats newStats = CacheStats.empty();
+    CacheStats deltaStats = CacheStats.empty();
+    for (int i = 0; i < partitions.size(); i += shards) {
+      final List<CachePartition> partitionShards = partitions.subList(i, i + shards);
+      CacheStats partitionStats = CacheStats.empty();
+      CacheStats partitionDelta = CacheStats.empty();
+      for (CachePartition shard : partitionShards) {
+        final CacheStats shardStats = shard.getCache().stats();
+        partitionStats = partitionStats.plus(shardStats);
+        partitionDelta = partitionDelta.plus(shard.deltaStats(shardStats));
+      }
+      newStats = newStats.plus(partitionStats);
+      deltaStats = deltaStats.plus(partitionDelta);
+      if (partitions.size() > shards) {
+        emitPartition(emitter, partitionShards, partitionStats, partitionDelta);
+      }
     }
     final ServiceMetricEvent.Builder builder = ServiceMetricEvent.builder();
     emitter.emit(builder.build("query/cache/caffeine/delta/requests", deltaStats.requestCount()));
@@ -154,43 +1113,473 @@ public class CaffeineCache implements io.druid.client.cache.Cache
     emitter.emit(builder.build("query/cache/caffeine/total/loadTime", newStats.totalLoadTime()));
     emitter.emit(builder.build("query/cache/caffeine/delta/evictionBytes", deltaStats.evictionWeight()));
     emitter.emit(builder.build("query/cache/caffeine/total/evictionBytes", newStats.evictionWeight()));
-    if (!priorStats.compareAndSet(oldStats, newStats)) {
-      // ISE for stack trace
-      log.warn(
-          new IllegalStateException("Multiple monitors"),
-          "Multiple monitors on the same cache causing race conditions and unreliable stats reporting"
-      );
+    if (sizeTuner != null) {
+      final long maxSizeBytes;
+      synchronized (capacityLock) {
+        // Shedding overrides the tuner until the pressure is relieved
+        maxSizeBytes = pressureMaximums == null ? sizeTuner.tune(deltaStats) : sizeTuner.getMaximumBytes();
+      }
+      emitter.emit(builder.build("query/cache/caffeine/maxSizeBytes", maxSizeBytes));
+    }
+    if (pressureMonitor != null) {
+      emitter.emit(builder.build("query/cache/caffeine/underPressure", pressureMonitor.isUnderPressure() ? 1 : 0));
+    }
+    final long coalesced = coalescedMisses.sum();
+    final long deltaCoalesced = coalesced - priorCoalescedMisses.getAndSet(coalesced);
+    emitter.emit(builder.build("query/cache/caffeine/total/coalescedMisses", coalesced));
+    emitter.emit(builder.build("query/cache/caffeine/delta/coalescedMisses", deltaCoalesced));
+    payloadStats.emit(emitter, builder);
+    if (costAdmission != null) {
+      compressionRatio = payloadStats.snapshot().getCompressionRatio();
+      for (CachePartition partition : partitions) {
+        partition.refreshHeadroom();
+      }
+      costAdmission.emit(emitter, builder);
     }
+    if (asyncWriter != null) {
+      asyncWriter.emit(emitter, builder);
+    }
+    if (diskTier != null) {
+      diskTier.emit(emitter, builder);
+    }
+    if (dedup != null) {
+      dedup.emit(emitter, builder);
+    }
+    if (!executorPools.isEmpty()) {
+      long queueSize = 0;
+      long activeThreads = 0;
+      for (ThreadPoolExecutor pool : executorPools) {
+        queueSize += pool.getQueue().size();
+        activeThreads += pool.getActiveCount();
+      }
+      emitter.emit(builder.build("query/cache/caffeine/executor/queueSize", queueSize));
+      emitter.emit(builder.build("query/cache/caffeine/executor/activeThreads", activeThreads));
+    }
+    getLatency.emit(emitter, builder);
+    putLatency.emit(emitter, builder);
+    getBulkLatency.emit(emitter, builder);
+    compressLatency.emit(emitter, builder);
+    decompressLatency.emit(emitter, builder);
+    if (offHeapStore != null) {
+      emitter.emit(builder.build("query/cache/caffeine/offHeap/allocatedBytes", offHeapStore.getAllocatedBytes()));
+      emitter.emit(builder.build("query/cache/caffeine/offHeap/usedBytes", offHeapStore.getUsedBytes()));
+    }
+  }
+
+  private static void emitPartition(
+      ServiceEmitter emitter,
+      List<CachePartition> partitionShards,
+      CacheStats newStats,
+      CacheStats deltaStats
+  )
+  {
+    final ServiceMetricEvent.Builder builder = ServiceMetricEvent.builder()
+                                                                 .setDimension(
+                                                                     "partition",
+                                                                     partitionShards.get(0).getName()
+                                                                 );
+    emitter.emit(builder.build("query/cache/caffeine/partition/delta/requests", deltaStats.requestCount()));
+    emitter.emit(builder.build("query/cache/caffeine/partition/total/requests", newStats.requestCount()));
+    emitter.emit(builder.build("query/cache/caffeine/partition/delta/hits", deltaStats.hitCount()));
+    emitter.emit(builder.build("query/cache/caffeine/partition/total/hits", newStats.hitCount()));
+    emitter.emit(builder.build("query/cache/caffeine/partition/delta/evictionBytes", deltaStats.evictionWeight()));
+    emitter.emit(builder.build("query/cache/caffeine/partition/total/evictionBytes", newStats.evictionWeight()));
+    long entries = 0;
+    long size = 0;
+    for (CachePartition shard : partitionShards) {
+      entries += shard.getCache().estimatedSize();
+      final OptionalLong shardSize = shard.weightedSize();
+      size = size < 0 || !shardSize.isPresent() ? -1 : size + shardSize.getAsLong();
+    }
+    emitter.emit(builder.build("query/cache/caffeine/partition/entries", entries));
+    if (size >= 0) {
+      emitter.emit(builder.build("query/cache/caffeine/partition/sizeBytes", size));
+    }
+  }
+
+  /**
+   * @return The cache of the shard of the key within the partition its namespace belongs to
+   */
+  private Cache<NamedKey, byte[]> cacheFor(NamedKey key)
+  {
+    return partitionOf(key).getCache();
+  }
+
+  private CachePartition partitionOf(NamedKey key)
+  {
+    final int first = partitionFor(key.namespace);
+    return partitions.get(shards == 1 ? first : first + shard(key));
+  }
+
+  /**
+   * @return The index of the first shard of the partition the namespace belongs to
+   */
+  private int partitionFor(String namespace)
+  {
+    for (int i = 0; i < partitions.size() - shards; i += shards) {
+      if (partitions.get(i).matches(namespace)) {
+        return i;
+      }
+    }
+    return partitions.size() - shards;
   }
 
+  private int shard(NamedKey key)
+  {
+    // Mixed, so the shards don't split along the same hash bits Caffeine picks its table buckets by
+    return ((key.hashCode() * 0x9E3779B9) >>> 1) % shards;
+  }
+
+  /**
+   * @return The cache of the last shard of the default partition, which is the only one unless partitions or shards
+   * are configured
+   */
   Cache<NamedKey, byte[]> getCache()
   {
-    return cache;
+    return partitions.get(partitions.size() - 1).getCache();
+  }
+
+  List<CachePartition> getPartitions()
+  {
+    return partitions;
   }
 
-  private final LZ4Factory factory = LZ4Factory.fastestInstance();
-  private final LZ4FastDecompressor decompressor = factory.fastDecompressor();
-  private final LZ4Compressor compressor = factory.fastCompressor();
+  @Nullable
+  OffHeapStore getOffHeapStore()
+  {
+    return offHeapStore;
+  }
 
-  private byte[] deserialize(byte[] bytes)
+  @Nullable
+  NamespaceIndex getNamespaceIndex()
+  {
+    return namespaceIndex;
+  }
+
+  @Nullable
+  DiskTier getDiskTier()
+  {
+    return diskTier;
+  }
+
+  @Nullable
+  AsyncWriter getAsyncWriter()
+  {
+    return asyncWriter;
+  }
+
+  @Nullable
+  ValueDedup getDedup()
+  {
+    return dedup;
+  }
+
+  @Nullable
+  CostAdmission getCostAdmission()
+  {
+    return costAdmission;
+  }
+
+  @Nullable
+  CacheSizeTuner getSizeTuner()
+  {
+    return sizeTuner;
+  }
+
+  /**
+   * Shrink every partition by pressureShedFraction, evicting the coldest entries so at least that fraction of the
+   * current weight is freed. Called again while the pressure lasts, each call sheds further until the partitions are
+   * down to their share of pressureMinBytes.
+   */
+  void shedColdest()
+  {
+    final double fraction = config.getPressureShedFraction();
+    final long minBytes = config.getPressureMinBytes() >= 0
+                          ? config.getPressureMinBytes()
+                          : config.getSizeInBytes() / 10;
+    synchronized (capacityLock) {
+      final boolean first = pressureMaximums == null;
+      if (first) {
+        pressureMaximums = new long[partitions.size()];
+        for (int i = 0; i < partitions.size(); ++i) {
+          pressureMaximums[i] = partitions.get(i).getCache().policy().eviction().get().getMaximum();
+        }
+      }
+      final long totalMaximum = Arrays.stream(pressureMaximums).sum();
+      long shed = 0;
+      for (int i = 0; i < partitions.size(); ++i) {
+        final CachePartition partition = partitions.get(i);
+        final Policy.Eviction<NamedKey, byte[]> eviction = partition.getCache().policy().eviction().get();
+        // Partitions keep their proportions of the floor
+        final long floor = (long) ((double) minBytes * pressureMaximums[i] / Math.max(totalMaximum, 1));
+        final long maximum = Math.max((long) (eviction.getMaximum() * (1 - fraction)), floor);
+        final long weight = partition.weightedSize().getAsLong();
+        final long target = Math.max(Math.min(maximum, (long) (weight * (1 - fraction))), floor);
+        shed += shedColdest(partition, eviction, weight - target);
+        eviction.setMaximum(Math.min(maximum, eviction.getMaximum()));
+      }
+      log.info("Shed [%,d] bytes of the coldest cache entries under memory pressure", shed);
+    }
+  }
+
+  private long shedColdest(CachePartition partition, Policy.Eviction<NamedKey, byte[]> eviction, long bytes)
+  {
+    long shed = 0;
+    while (shed < bytes) {
+      long batchShed = 0;
+      for (Map.Entry<NamedKey, byte[]> entry : eviction.coldest(SHED_BATCH_SIZE).entrySet()) {
+        if (shed + batchShed >= bytes) {
+          break;
+        }
+        if (partition.getCache().asMap().remove(entry.getKey(), entry.getValue())) {
+          batchShed += weigh(offHeapStore, dedup, entry.getKey(), entry.getValue());
+        }
+      }
+      if (batchShed == 0) {
+        // Empty, or racing with other removals
+        break;
+      }
+      shed += batchShed;
+    }
+    return shed;
+  }
+
+  /**
+   * Give the partitions back the maximums they had before the memory pressure
+   */
+  void restoreCapacity()
+  {
+    synchronized (capacityLock) {
+      if (pressureMaximums == null) {
+        return;
+      }
+      for (int i = 0; i < partitions.size(); ++i) {
+        partitions.get(i).getCache().policy().eviction().get().setMaximum(pressureMaximums[i]);
+      }
+      pressureMaximums = null;
+      log.info("Memory pressure relieved, restored cache capacity");
+    }
+  }
+
+  /**
+   * Caffeine only weighs entries as they are written, so the entry of a key which took over the charge for a shared
+   * body is written again with the same value. A variable expiration (expireRules) is left as it was. Caffeine can't
+   * set the time of a single entry under a fixed expireAfter, so there the write counts as an access to the entry,
+   * like the gets which most likely keep an entry holding a popular value alive anyway.
+   */
+  private void reweigh(NamedKey key, byte[] stored)
+  {
+    final Cache<NamedKey, byte[]> cache = cacheFor(key);
+    final Optional<Policy.VarExpiration<NamedKey, byte[]>> expiration = cache.policy().expireVariably();
+    final OptionalLong expiresAfter = expiration.isPresent()
+                                      ? expiration.get().getExpiresAfter(key, TimeUnit.NANOSECONDS)
+                                      : OptionalLong.empty();
+    // Fails if the entry is already gone or replaced, whose removal moves the charge again
+    if (cache.asMap().replace(key, stored, stored) && expiresAfter.isPresent()) {
+      expiration.get().setExpiresAfter(key, expiresAfter.getAsLong(), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * @return The namespace of the key, or an equal one if another key already holds it
+   */
+  private static NamedKey intern(NamedKey key)
+  {
+    final String namespace = NAMESPACES.intern(key.namespace);
+    return namespace == key.namespace ? key : new NamedKey(namespace, key.key);
+  }
+
+  /**
+   * @return The memory used by an entry, off heap values are charged for both their handle and the chunk holding their
+   * payload. A value shared by deduplication is only charged to one of the keys holding it.
+   */
+  private static int weigh(
+      @Nullable OffHeapStore offHeapStore,
+      @Nullable ValueDedup dedup,
+      NamedKey key,
+      byte[] value
+  )
+  {
+    final int entry = arraySize(key.key.length) + ENTRY_OVERHEAD + (dedup == null ? 0 : ValueDedup.HOLDER_OVERHEAD);
+    if (dedup != null && !dedup.isCharged(key, value)) {
+      return entry;
+    }
+    final int payload = offHeapStore == null ? 0 : offHeapStore.allocatedLength(value);
+    return arraySize(value.length) + payload + entry + (dedup == null ? 0 : ValueDedup.BODY_OVERHEAD);
+  }
+
+  private static int arraySize(int length)
+  {
+    // Objects are 8 byte aligned
+    return (ARRAY_HEADER_SIZE + length + 7) & ~7;
+  }
+
+  private static int payloadLength(@Nullable OffHeapStore offHeapStore, byte[] value)
+  {
+    return offHeapStore == null ? value.length : OffHeapStore.length(value);
+  }
+
+  /**
+   * Compress into the thread's scratch buffer, then copy exactly the compressed bytes into their final home (a right
+   * sized heap array or the off heap store). This is the only allocation of the put path, and with dedup there is none
+   * if an equal value is already stored.
+   */
+  @Nullable
+  private byte[] serializeAndStore(NamedKey key, byte[] value, int offset, int length)
+  {
+    final int maxCompressedLength = codec == null ? 0 : codec.maxCompressedLength(length);
+    final byte[] scratch = scratch(HEADER_SIZE + Math.max(maxCompressedLength, length));
+    final int len = serialize(value, offset, length, scratch);
+    if (dedup != null) {
+      return dedup.share(key, scratch, len);
+    }
+    if (offHeapStore == null) {
+      return Arrays.copyOf(scratch, len);
+    }
+    return offHeapStore.store(scratch, 0, len);
+  }
+
+  @Nullable
+  private byte[] load(@Nullable byte[] value)
+  {
+    if (value == null || offHeapStore == null) {
+      return value;
+    }
+    return offHeapStore.load(value);
+  }
+
+  /**
+   * @return The value, or null on a miss. Values which can't be decoded (say written with another zstd dictionary)
+   * are invalidated and read as a miss.
+   */
+  @Nullable
+  private byte[] deserialize(NamedKey key, @Nullable byte[] bytes)
   {
     if (bytes == null) {
       return null;
     }
-    final int decompressedLen = ByteBuffer.wrap(bytes).getInt();
+    final byte format = bytes[0];
+    if (format == CacheCodec.FORMAT_RAW) {
+      return Arrays.copyOfRange(bytes, FORMAT_RAW_HEADER_SIZE, bytes.length);
+    }
+    final int decompressedLen = ByteBuffer.wrap(bytes).getInt(1);
     final byte[] out = new byte[decompressedLen];
-    decompressor.decompress(bytes, Ints.BYTES, out, 0, out.length);
+    final long start = decompressLatency.start();
+    try {
+      decoder(format).decompress(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE, out, 0, out.length);
+    }
+    catch (LZ4Exception | IllegalStateException | IllegalArgumentException e) {
+      invalidateUndecodable(key, e);
+      return null;
+    }
+    decompressLatency.record(start);
     return out;
   }
 
-  private byte[] serialize(byte[] value)
+  /**
+   * Decompress the value into dst at its position, which is left as it is
+   *
+   * @return If the value could be decoded, otherwise it has been invalidated
+   */
+  private boolean decompress(NamedKey key, byte[] bytes, ByteBuffer dst)
+  {
+    final int length = ByteBuffer.wrap(bytes).getInt(1);
+    try {
+      decoder(bytes[0]).decompress(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE, dst, dst.position(), length);
+      return true;
+    }
+    catch (LZ4Exception | IllegalStateException | IllegalArgumentException e) {
+      invalidateUndecodable(key, e);
+      return false;
+    }
+  }
+
+  /**
+   * Only for what the decoders throw on bad input: LZ4Exception, or ISE and IAE from zstd and unknown formats. Anything
+   * else, such as writing to the caller's buffer, is not the entry's fault and propagates.
+   */
+  private void invalidateUndecodable(NamedKey key, RuntimeException e)
+  {
+    log.warn(e, "Invalidating cache entry which can't be decoded");
+    cacheFor(key).invalidate(key);
+  }
+
+  private boolean isKnownFormat(byte format)
   {
-    final int len = compressor.maxCompressedLength(value.length);
-    final byte[] out = new byte[len];
-    final int compressedSize = compressor.compress(value, 0, value.length, out, 0);
-    return ByteBuffer.allocate(compressedSize + Ints.BYTES)
-                     .putInt(value.length)
-                     .put(out, 0, compressedSize)
-                     .array();
+    return format >= 0 && format < decoders.length && decoders[format] != null;
+  }
+
+  /**
+   * @return If the stored value is in a format, and for zstd with a dictionary, this cache can read
+   */
+  private boolean isDecodable(byte[] value)
+  {
+    if (value.length == 0) {
+      return false;
+    }
+    if (value[0] == CacheCodec.FORMAT_RAW) {
+      return true;
+    }
+    return isKnownFormat(value[0])
+           && value.length >= HEADER_SIZE
+           && decoders[value[0]].canDecode(value, HEADER_SIZE, value.length - HEADER_SIZE);
+  }
+
+  private CacheCodec decoder(byte format)
+  {
+    if (!isKnownFormat(format)) {
+      throw new IAE("Unknown cache entry format [%d]", format);
+    }
+    return decoders[format];
+  }
+
+  /**
+   * Values are stored as a format byte followed by either the raw value, or the decompressed length and the compressed
+   * value. Values smaller than the compression threshold, or which the codec can't shrink by at least the minimum
+   * compression ratio, are stored raw.
+   *
+   * @return The number of bytes written to out
+   */
+  private int serialize(byte[] value, int offset, int length, byte[] out)
+  {
+    if (codec != null && length >= config.getCompressionThreshold()) {
+      final long start = compressLatency.start();
+      final int compressedSize = codec.compress(
+          value,
+          offset,
+          length,
+          out,
+          HEADER_SIZE,
+          out.length - HEADER_SIZE
+      );
+      compressLatency.record(start);
+      if (compressedSize * config.getMinCompressionRatio() <= length) {
+        out[0] = codec.getFormat();
+        out[1] = (byte) (length >> 24);
+        out[2] = (byte) (length >> 16);
+        out[3] = (byte) (length >> 8);
+        out[4] = (byte) length;
+        payloadStats.record(length, HEADER_SIZE + compressedSize, true);
+        return HEADER_SIZE + compressedSize;
+      }
+    }
+    out[0] = CacheCodec.FORMAT_RAW;
+    System.arraycopy(value, offset, out, FORMAT_RAW_HEADER_SIZE, length);
+    payloadStats.record(length, FORMAT_RAW_HEADER_SIZE + length, false);
+    return FORMAT_RAW_HEADER_SIZE + length;
+  }
+
+  private static byte[] scratch(int size)
+  {
+    if (size > MAX_SCRATCH_SIZE) {
+      // Don't pin huge buffers to every query thread, outliers pay for a temporary one instead
+      return new byte[size];
+    }
+    byte[] scratch = SCRATCH.get();
+    if (scratch.length < size) {
+      scratch = new byte[Math.max(size, Math.min(scratch.length * 2, MAX_SCRATCH_SIZE))];
+      SCRATCH.set(scratch);
+    }
+    return scratch;
   }
 }
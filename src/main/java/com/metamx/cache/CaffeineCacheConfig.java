@@ -20,13 +20,27 @@
 package com.metamx.cache;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.druid.client.cache.CacheProvider;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import javax.annotation.Nullable;
 
 public class CaffeineCacheConfig
 {
   @JsonProperty
   private long expireAfter = -1;
 
+  @JsonProperty
+  private List<CacheExpireRule> expireRules = ImmutableList.of();
+
   @JsonProperty
   private long sizeInBytes = -1;
 
@@ -35,14 +49,157 @@ public class CaffeineCacheConfig
   // see https://github.com/ben-manes/caffeine/issues/77
   private CacheExecutorFactory cacheExecutorFactory = CacheExecutorFactory.COMMON_FJP;
 
+  @JsonProperty
+  private int cacheExecutorThreads = -1;
+
+  @JsonProperty
+  private int cacheExecutorQueueSize = CacheExecutorFactory.DEFAULT_QUEUE_SIZE;
+
   @JsonProperty
   private boolean evictOnClose = false;
 
+  @JsonProperty
+  private Map<String, Long> partitions = ImmutableMap.of();
+
+  @JsonProperty
+  private int shards = 1;
+
+  @JsonProperty
+  private String snapshotPath = null;
+
+  @JsonProperty
+  private int snapshotMaxEntries = 100_000;
+
+  @JsonProperty
+  private long snapshotMaxBytes = 1L << 30;
+
+  @JsonProperty
+  private long snapshotPeriod = -1;
+
+  @JsonProperty
+  private boolean autoResize = false;
+
+  @JsonProperty
+  private long autoResizeMinBytes = -1;
+
+  @JsonProperty
+  private long autoResizeMaxBytes = -1;
+
+  @JsonProperty
+  private double autoResizeHeapLowWatermark = 0.6;
+
+  @JsonProperty
+  private double autoResizeHeapHighWatermark = 0.85;
+
+  @JsonProperty
+  private double pressureShedFraction = 0;
+
+  @JsonProperty
+  private long pressureMinBytes = -1;
+
+  @JsonProperty
+  private double pressureThreshold = 0.9;
+
+  @JsonProperty
+  private double pressureReliefThreshold = 0.7;
+
+  @JsonProperty
+  private boolean costAdmission = false;
+
+  @JsonProperty
+  private double costAdmissionMinRatio = 0.5;
+
+  @JsonProperty
+  private String tracePath = null;
+
+  @JsonProperty
+  private double traceSampleRate = 0.01;
+
+  @JsonProperty
+  private long traceMaxBytes = 1L << 30;
+
+  @JsonProperty
+  private boolean asyncPut = false;
+
+  @JsonProperty
+  private CacheExecutorFactory asyncPutExecutorFactory = CacheExecutorFactory.COMMON_FJP;
+
+  @JsonProperty
+  private int asyncPutMaxPending = 10_000;
+
+  @JsonProperty
+  private long asyncPutMaxPendingBytes = 256L * 1024 * 1024;
+
+  @JsonProperty
+  private String diskTierPath = null;
+
+  @JsonProperty
+  private long diskTierSizeInBytes = 10L * 1024 * 1024 * 1024;
+
+  @JsonProperty
+  private int diskTierSegmentSize = 64 * 1024 * 1024;
+
+  @JsonProperty
+  private boolean dedup = false;
+
+  @JsonProperty
+  private CacheProvider remote = null;
+
+  @JsonProperty
+  private int remoteWriteQueueSize = 10_000;
+
+  @JsonProperty
+  private long remoteWriteQueueBytes = 256L * 1024 * 1024;
+
+  @JsonProperty
+  private int remoteWriteBatchSize = 100;
+
+  @JsonProperty
+  private boolean latencyMetrics = false;
+
+  @JsonProperty
+  private boolean offHeap = false;
+
+  @JsonProperty
+  private int offHeapSlabSize = 4 * 1024 * 1024;
+
+  @JsonProperty
+  private int compressionThreshold = 64;
+
+  @JsonProperty
+  private double minCompressionRatio = 1.1;
+
+  @JsonProperty
+  private CompressionStrategy compression = CompressionStrategy.LZ4;
+
+  @JsonProperty
+  private int compressionLevel = -1;
+
+  @JsonProperty
+  private String zstdDictionary = null;
+
+  @JsonProperty
+  private int bulkParallelMinEntries = 256;
+
+  @JsonProperty
+  private long bulkParallelMinBytes = 4 * 1024 * 1024;
+
+  @JsonProperty
+  private int bulkParallelism = -1;
+
   public long getExpireAfter()
   {
     return expireAfter;
   }
 
+  /**
+   * @return Expiration of the namespaces matching each rule, the first matching rule wins over expireAfter
+   */
+  public List<CacheExpireRule> getExpireRules()
+  {
+    return expireRules;
+  }
+
   public long getSizeInBytes()
   {
     return sizeInBytes;
@@ -50,11 +207,282 @@ public class CaffeineCacheConfig
 
   public Executor createExecutor()
   {
-    return cacheExecutorFactory.createExecutor();
+    return createExecutor(1);
+  }
+
+  /**
+   * @param shards The number of executors splitting cacheExecutorThreads and cacheExecutorQueueSize between them
+   *
+   * @return The maintenance executor of one shard
+   */
+  public Executor createExecutor(int shards)
+  {
+    final int threads = cacheExecutorThreads > 0 ? cacheExecutorThreads : Runtime.getRuntime().availableProcessors();
+    return cacheExecutorFactory.createExecutor(
+        Math.max(threads / shards, 1),
+        Math.max(cacheExecutorQueueSize / shards, 1)
+    );
   }
 
   public boolean isEvictOnClose()
   {
     return evictOnClose;
   }
+
+  /**
+   * @return Namespace prefix to the bytes reserved for the namespaces starting with it
+   */
+  public Map<String, Long> getPartitions()
+  {
+    return partitions;
+  }
+
+  /**
+   * @return The number of Caffeine caches each partition is split into by key hash, each with its own executor
+   */
+  public int getShards()
+  {
+    return shards;
+  }
+
+  public String getSnapshotPath()
+  {
+    return snapshotPath;
+  }
+
+  public int getSnapshotMaxEntries()
+  {
+    return snapshotMaxEntries;
+  }
+
+  public long getSnapshotMaxBytes()
+  {
+    return snapshotMaxBytes;
+  }
+
+  public long getSnapshotPeriod()
+  {
+    return snapshotPeriod;
+  }
+
+  public boolean isAutoResize()
+  {
+    return autoResize;
+  }
+
+  public long getAutoResizeMinBytes()
+  {
+    return autoResizeMinBytes;
+  }
+
+  public long getAutoResizeMaxBytes()
+  {
+    return autoResizeMaxBytes;
+  }
+
+  public double getAutoResizeHeapLowWatermark()
+  {
+    return autoResizeHeapLowWatermark;
+  }
+
+  public double getAutoResizeHeapHighWatermark()
+  {
+    return autoResizeHeapHighWatermark;
+  }
+
+  /**
+   * @return Fraction of the cache weight to shed each time a GC leaves the tenured heap above pressureThreshold, 0
+   * disables shedding
+   */
+  public double getPressureShedFraction()
+  {
+    return pressureShedFraction;
+  }
+
+  /**
+   * @return The smallest size memory pressure may shrink the cache to, -1 for a tenth of sizeInBytes
+   */
+  public long getPressureMinBytes()
+  {
+    return pressureMinBytes;
+  }
+
+  public double getPressureThreshold()
+  {
+    return pressureThreshold;
+  }
+
+  public double getPressureReliefThreshold()
+  {
+    return pressureReliefThreshold;
+  }
+
+  public boolean isCostAdmission()
+  {
+    return costAdmission;
+  }
+
+  /**
+   * @return Fraction of the average compute time per byte a value needs to be admitted while the cache is full
+   */
+  public double getCostAdmissionMinRatio()
+  {
+    return costAdmissionMinRatio;
+  }
+
+  public String getTracePath()
+  {
+    return tracePath;
+  }
+
+  public double getTraceSampleRate()
+  {
+    return traceSampleRate;
+  }
+
+  public long getTraceMaxBytes()
+  {
+    return traceMaxBytes;
+  }
+
+  public boolean isAsyncPut()
+  {
+    return asyncPut;
+  }
+
+  /**
+   * @return The executor which compresses and inserts the values when asyncPut is enabled. A full bounded pool rejects
+   * puts, which are then dropped, rather than compressing them on the query thread
+   */
+  public Executor createAsyncPutExecutor()
+  {
+    final Executor executor = asyncPutExecutorFactory.createRejectingExecutor(
+        cacheExecutorThreads,
+        cacheExecutorQueueSize,
+        "CaffeineAsyncPut-%s"
+    );
+    return executor == null ? ForkJoinPool.commonPool() : executor;
+  }
+
+  public int getAsyncPutMaxPending()
+  {
+    return asyncPutMaxPending;
+  }
+
+  public long getAsyncPutMaxPendingBytes()
+  {
+    return asyncPutMaxPendingBytes;
+  }
+
+  public String getDiskTierPath()
+  {
+    return diskTierPath;
+  }
+
+  public long getDiskTierSizeInBytes()
+  {
+    return diskTierSizeInBytes;
+  }
+
+  public int getDiskTierSegmentSize()
+  {
+    return diskTierSegmentSize;
+  }
+
+  public boolean isDedup()
+  {
+    return dedup;
+  }
+
+  /**
+   * @return The cache this one is a near cache for, or null if it is a purely local cache
+   */
+  public CacheProvider getRemote()
+  {
+    return remote;
+  }
+
+  public int getRemoteWriteQueueSize()
+  {
+    return remoteWriteQueueSize;
+  }
+
+  public long getRemoteWriteQueueBytes()
+  {
+    return remoteWriteQueueBytes;
+  }
+
+  public int getRemoteWriteBatchSize()
+  {
+    return remoteWriteBatchSize;
+  }
+
+  public boolean isLatencyMetrics()
+  {
+    return latencyMetrics;
+  }
+
+  public boolean isOffHeap()
+  {
+    return offHeap;
+  }
+
+  public int getOffHeapSlabSize()
+  {
+    return offHeapSlabSize;
+  }
+
+  public int getCompressionThreshold()
+  {
+    return compressionThreshold;
+  }
+
+  public double getMinCompressionRatio()
+  {
+    return minCompressionRatio;
+  }
+
+  public CompressionStrategy getCompression()
+  {
+    return compression;
+  }
+
+  public int getCompressionLevel()
+  {
+    return compressionLevel;
+  }
+
+  public String getZstdDictionary()
+  {
+    return zstdDictionary;
+  }
+
+  public int getBulkParallelMinEntries()
+  {
+    return bulkParallelMinEntries;
+  }
+
+  public long getBulkParallelMinBytes()
+  {
+    return bulkParallelMinBytes;
+  }
+
+  public int getBulkParallelism()
+  {
+    return bulkParallelism;
+  }
+
+  @Nullable
+  public CacheCodec createCodec()
+  {
+    final String dictionaryPath = getZstdDictionary();
+    final byte[] dictionary;
+    try {
+      dictionary = dictionaryPath == null ? null : Files.readAllBytes(Paths.get(dictionaryPath));
+    }
+    catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+    return getCompression().createCodec(getCompressionLevel(), dictionary);
+  }
 }
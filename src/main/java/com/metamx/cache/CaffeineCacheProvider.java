@@ -29,6 +29,16 @@ public class CaffeineCacheProvider extends CaffeineCacheConfig implements CacheP
   @Override
   public Cache get()
   {
-    return CaffeineCache.create(this);
+    final CaffeineCache local = CaffeineCache.create(this);
+    if (getRemote() == null) {
+      return local;
+    }
+    return new NearCache(
+        local,
+        getRemote().get(),
+        getRemoteWriteQueueSize(),
+        getRemoteWriteQueueBytes(),
+        getRemoteWriteBatchSize()
+    );
   }
 }
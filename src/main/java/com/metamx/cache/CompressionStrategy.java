@@ -0,0 +1,72 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import javax.annotation.Nullable;
+import net.jpountz.lz4.LZ4Factory;
+
+public enum CompressionStrategy
+{
+  NONE {
+    @Override
+    public CacheCodec createCodec(int level, @Nullable byte[] dictionary)
+    {
+      return null;
+    }
+  },
+  LZ4 {
+    @Override
+    public CacheCodec createCodec(int level, @Nullable byte[] dictionary)
+    {
+      return new CacheCodec.Lz4Codec(LZ4Factory.fastestInstance().fastCompressor());
+    }
+  },
+  LZ4_HIGH {
+    @Override
+    public CacheCodec createCodec(int level, @Nullable byte[] dictionary)
+    {
+      final LZ4Factory factory = LZ4Factory.fastestInstance();
+      return new CacheCodec.Lz4Codec(level < 0 ? factory.highCompressor() : factory.highCompressor(level));
+    }
+  },
+  ZSTD {
+    @Override
+    public CacheCodec createCodec(int level, @Nullable byte[] dictionary)
+    {
+      return new CacheCodec.ZstdCodec(level < 0 ? CacheCodec.ZstdCodec.DEFAULT_LEVEL : level, dictionary);
+    }
+  };
+
+  /**
+   * @param level      Codec specific compression level, negative for the codec's default
+   * @param dictionary Trained dictionary, only used by codecs which support one
+   *
+   * @return The codec to compress new values with, or null to store every value uncompressed
+   */
+  @Nullable
+  public abstract CacheCodec createCodec(int level, @Nullable byte[] dictionary);
+
+  @JsonCreator
+  public static CompressionStrategy from(String str)
+  {
+    return Enum.valueOf(CompressionStrategy.class, str.toUpperCase());
+  }
+}
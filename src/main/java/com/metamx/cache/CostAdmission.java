@@ -0,0 +1,87 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.metamx.emitter.service.ServiceEmitter;
+import com.metamx.emitter.service.ServiceMetricEvent;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission filter for puts which carry the time it took to compute the value. While the partition is full, a value
+ * is only admitted if its compute time per byte is at least minCostRatio times the running average of the offered
+ * values, so the bytes the cache holds save as much compute as possible. Caffeine's own frequency based admission
+ * still applies to the values let through.
+ */
+class CostAdmission
+{
+  // Weight of each new sample in the running average
+  static final double DECAY = 0.01;
+
+  private final double minCostRatio;
+  // Racy updates only lose a sample now and then, which the average tolerates
+  private volatile double meanCostDensity = Double.NaN;
+  private final LongAdder rejections = new LongAdder();
+  private final AtomicLong priorRejections = new AtomicLong(0);
+
+  /**
+   * @param minCostRatio Fraction of the average compute time per byte a value needs to be admitted to a full cache
+   */
+  CostAdmission(double minCostRatio)
+  {
+    this.minCostRatio = minCostRatio;
+  }
+
+  /**
+   * @param computeMillis The time it took to compute the value
+   * @param length        The length of the value before compression
+   * @param full          If admitting the value would evict others
+   *
+   * @return If the value should be put into the cache
+   */
+  boolean admit(long computeMillis, int length, boolean full)
+  {
+    final double density = (double) Math.max(computeMillis, 0) / Math.max(length, 1);
+    final double mean = meanCostDensity;
+    meanCostDensity = Double.isNaN(mean) ? density : mean + DECAY * (density - mean);
+    if (full && !Double.isNaN(mean) && density < minCostRatio * mean) {
+      rejections.increment();
+      return false;
+    }
+    return true;
+  }
+
+  double getMeanCostDensity()
+  {
+    return meanCostDensity;
+  }
+
+  long getRejections()
+  {
+    return rejections.sum();
+  }
+
+  void emit(ServiceEmitter emitter, ServiceMetricEvent.Builder builder)
+  {
+    final long total = rejections.sum();
+    emitter.emit(builder.build("query/cache/caffeine/total/costRejections", total));
+    emitter.emit(builder.build("query/cache/caffeine/delta/costRejections", total - priorRejections.getAndSet(total)));
+  }
+}
@@ -0,0 +1,489 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.metamx.common.ByteBufferUtils;
+import com.metamx.common.logger.Logger;
+import com.metamx.emitter.service.ServiceEmitter;
+import com.metamx.emitter.service.ServiceMetricEvent;
+import io.druid.client.cache.Cache.NamedKey;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Second tier for the entries evicted from the heap for size. Their stored (already compressed) bytes are appended to
+ * rolling memory mapped segment files and located through an in heap index. An entry leaves the tier when it is
+ * promoted back into the heap, replaced by a put, closed with its namespace or found past the time it would have
+ * expired in the heap.
+ *
+ * Each record holds that expiration time, then the namespace, the key and the value, each prefixed with its length.
+ * Once the segments exceed the byte budget, the segment with the fewest live bytes is compacted into the new head
+ * segment if at most half of it is live, otherwise the oldest segment is dropped with its entries. Expired records are
+ * dropped instead of compacted. Reads don't take the tier's lock but a reference to the segment, and a dropped
+ * segment is unmapped as soon as its last reader is done, so the mappings of deleted files don't hold on to disk space
+ * until they are garbage collected.
+ *
+ * Entries are added by the cache writer while Caffeine evicts, which may be on the thread of a put or a promotion, so
+ * spilling an entry is a copy into the mapped head segment and, every segmentSize bytes, mapping a new file.
+ */
+class DiskTier
+{
+  private static final Logger log = new Logger(DiskTier.class);
+  private static final String SEGMENT_PREFIX = "caffeine-l2-";
+  private static final double COMPACTION_LIVE_RATIO = 0.5;
+
+  private final File directory;
+  private final int segmentSize;
+  private final int maxSegments;
+  // Key to the segment id in the upper and the record offset in the lower 32 bits
+  private final ConcurrentMap<NamedKey, Long> index = new ConcurrentHashMap<>();
+  // The keys of each namespace, may also hold keys which already left the index
+  private final ConcurrentMap<String, Set<NamedKey>> namespaces = new ConcurrentHashMap<>();
+  // By id, which is also the age
+  private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final AtomicLong priorHits = new AtomicLong(0);
+  @GuardedBy("this")
+  private Segment head = null;
+  @GuardedBy("this")
+  private int nextSegmentId = 0;
+
+  /**
+   * @param directory   Where the segment files are kept, segments left over from a previous run are deleted
+   * @param sizeInBytes The budget of the segment files
+   * @param segmentSize The size of each segment file, entries larger than half of it are not kept
+   */
+  DiskTier(File directory, long sizeInBytes, int segmentSize) throws IOException
+  {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSegments = (int) Math.max(2, sizeInBytes / segmentSize);
+    Files.createDirectories(directory.toPath());
+    final File[] stale = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX));
+    if (stale != null) {
+      for (File file : stale) {
+        Files.delete(file.toPath());
+      }
+    }
+  }
+
+  /**
+   * Append the entry, replacing any previous value of the key
+   *
+   * @param expiresAt When the entry expires, in ms since the epoch
+   */
+  synchronized void add(NamedKey key, byte[] value, long expiresAt)
+  {
+    final byte[] namespace = key.namespace.getBytes(StandardCharsets.UTF_8);
+    final int length = recordLength(namespace.length, key.key.length, value.length);
+    // A fresh head may be half full of compacted records
+    if (length > segmentSize * COMPACTION_LIVE_RATIO) {
+      return;
+    }
+    try {
+      if (head == null || head.position + length > segmentSize) {
+        roll();
+      }
+    }
+    catch (IOException e) {
+      log.warn(e, "Unable to add a segment to [%s], dropping evicted entry", directory);
+      return;
+    }
+    final long location = append(expiresAt, namespace, key.key, value);
+    head.liveBytes.addAndGet(length);
+    final Long previous = index.put(key, location);
+    if (previous != null) {
+      release(previous);
+    }
+    namespaces.compute(
+        key.namespace,
+        (ns, keys) -> {
+          final Set<NamedKey> namespaceKeys = keys == null ? ConcurrentHashMap.newKeySet() : keys;
+          namespaceKeys.add(key);
+          return namespaceKeys;
+        }
+    );
+  }
+
+  /**
+   * Remove the entry of the key from the tier
+   *
+   * @return The entry, or null if the key is not in the tier or it has expired
+   */
+  @Nullable
+  Entry take(NamedKey key)
+  {
+    final Long location = index.remove(key);
+    if (location == null) {
+      return null;
+    }
+    unindexNamespace(key);
+    final Segment segment = acquire(segmentId(location));
+    if (segment == null) {
+      return null;
+    }
+    try {
+      final ByteBuffer record = record(segment, offset(location));
+      final long expiresAt = record.getLong();
+      segment.liveBytes.addAndGet(-recordLength(segment, offset(location)));
+      if (expiresAt <= System.currentTimeMillis()) {
+        return null;
+      }
+      record.position(record.position() + record.getInt());
+      record.position(record.position() + record.getInt());
+      final byte[] value = new byte[record.getInt()];
+      record.get(value);
+      hits.increment();
+      return new Entry(value, expiresAt);
+    }
+    finally {
+      segment.release();
+    }
+  }
+
+  void remove(NamedKey key)
+  {
+    final Long location = index.remove(key);
+    if (location != null) {
+      unindexNamespace(key);
+      release(location);
+    }
+  }
+
+  void removeNamespace(String namespace)
+  {
+    final Set<NamedKey> keys = namespaces.remove(namespace);
+    if (keys != null) {
+      for (NamedKey key : keys) {
+        remove(key);
+      }
+    }
+  }
+
+  synchronized void close()
+  {
+    index.clear();
+    namespaces.clear();
+    for (Segment segment : segments.values()) {
+      deleteSegment(segment);
+    }
+    segments.clear();
+    head = null;
+  }
+
+  int getEntries()
+  {
+    return index.size();
+  }
+
+  int getSegments()
+  {
+    return segments.size();
+  }
+
+  long getLiveBytes()
+  {
+    long live = 0;
+    for (Segment segment : segments.values()) {
+      live += segment.liveBytes.get();
+    }
+    return live;
+  }
+
+  long getHits()
+  {
+    return hits.sum();
+  }
+
+  void emit(ServiceEmitter emitter, ServiceMetricEvent.Builder builder)
+  {
+    final long totalHits = hits.sum();
+    emitter.emit(builder.build("query/cache/caffeine/diskTier/entries", getEntries()));
+    emitter.emit(builder.build("query/cache/caffeine/diskTier/sizeBytes", (long) getSegments() * segmentSize));
+    emitter.emit(builder.build("query/cache/caffeine/diskTier/liveBytes", getLiveBytes()));
+    emitter.emit(builder.build("query/cache/caffeine/total/diskHits", totalHits));
+    emitter.emit(builder.build("query/cache/caffeine/delta/diskHits", totalHits - priorHits.getAndSet(totalHits)));
+  }
+
+  @GuardedBy("this")
+  private void roll() throws IOException
+  {
+    final int id = nextSegmentId++;
+    final File file = new File(directory, SEGMENT_PREFIX + id);
+    final MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(
+        file.toPath(),
+        StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE
+    )) {
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+    head = new Segment(id, file, buffer);
+    segments.put(id, head);
+    if (segments.size() > maxSegments) {
+      reclaim();
+    }
+  }
+
+  /**
+   * Free one segment other than the head, either by moving its live records to the head or by dropping it
+   */
+  @GuardedBy("this")
+  private void reclaim()
+  {
+    Segment victim = null;
+    for (Segment segment : segments.values()) {
+      if (segment != head && (victim == null || segment.liveBytes.get() < victim.liveBytes.get())) {
+        victim = segment;
+      }
+    }
+    // A fresh head has room for half a segment of live records
+    final boolean compact = victim.liveBytes.get() <= segmentSize * COMPACTION_LIVE_RATIO;
+    if (!compact) {
+      victim = segments.firstEntry().getValue();
+    }
+    final long now = System.currentTimeMillis();
+    int moved = 0;
+    int dropped = 0;
+    for (int offset = 0; offset < victim.position; offset += recordLength(victim, offset)) {
+      final ByteBuffer record = record(victim, offset);
+      final long expiresAt = record.getLong();
+      final byte[] namespace = new byte[record.getInt()];
+      record.get(namespace);
+      final byte[] key = new byte[record.getInt()];
+      record.get(key);
+      final NamedKey namedKey = new NamedKey(new String(namespace, StandardCharsets.UTF_8), key);
+      final long location = location(victim.id, offset);
+      final Long current = index.get(namedKey);
+      if (current == null || current != location) {
+        continue;
+      }
+      if (compact && expiresAt > now) {
+        final byte[] value = new byte[record.getInt()];
+        record.get(value);
+        final long newLocation = append(expiresAt, namespace, key, value);
+        // Promoted meanwhile otherwise, which leaves the appended copy dead
+        if (index.replace(namedKey, location, newLocation)) {
+          head.liveBytes.addAndGet(recordLength(namespace.length, key.length, value.length));
+          ++moved;
+        }
+      } else if (index.remove(namedKey, location)) {
+        unindexNamespace(namedKey);
+        ++dropped;
+      }
+    }
+    segments.remove(victim.id);
+    deleteSegment(victim);
+    log.debug("Reclaimed disk tier segment [%d], moved [%,d] and dropped [%,d] entries", victim.id, moved, dropped);
+  }
+
+  /**
+   * @return The location of the record
+   */
+  @GuardedBy("this")
+  private long append(long expiresAt, byte[] namespace, byte[] key, byte[] value)
+  {
+    final ByteBuffer out = head.buffer.duplicate();
+    final int offset = head.position;
+    out.position(offset);
+    out.putLong(expiresAt);
+    out.putInt(namespace.length).put(namespace);
+    out.putInt(key.length).put(key);
+    out.putInt(value.length).put(value);
+    head.position = out.position();
+    return location(head.id, offset);
+  }
+
+  /**
+   * Forget the key of the namespace, unless it was added back to the index meanwhile
+   */
+  private void unindexNamespace(NamedKey key)
+  {
+    namespaces.computeIfPresent(
+        key.namespace,
+        (ns, keys) -> {
+          if (!index.containsKey(key)) {
+            keys.remove(key);
+          }
+          return keys.isEmpty() ? null : keys;
+        }
+    );
+  }
+
+  private void release(long location)
+  {
+    final Segment segment = acquire(segmentId(location));
+    if (segment != null) {
+      try {
+        segment.liveBytes.addAndGet(-recordLength(segment, offset(location)));
+      }
+      finally {
+        segment.release();
+      }
+    }
+  }
+
+  /**
+   * @return The segment with a reference taken, to be released once done reading it, or null if it was dropped
+   */
+  @Nullable
+  private Segment acquire(int segmentId)
+  {
+    final Segment segment = segments.get(segmentId);
+    return segment != null && segment.acquire() ? segment : null;
+  }
+
+  /**
+   * Delete the file of a segment which has been taken out of the segments, and drop the tier's reference to it
+   */
+  private void deleteSegment(Segment segment)
+  {
+    try {
+      Files.deleteIfExists(segment.file.toPath());
+    }
+    catch (IOException e) {
+      log.warn(e, "Unable to delete disk tier segment [%s]", segment.file);
+    }
+    segment.release();
+  }
+
+  private static ByteBuffer record(Segment segment, int offset)
+  {
+    final ByteBuffer record = segment.buffer.duplicate();
+    record.position(offset);
+    return record;
+  }
+
+  private static int recordLength(Segment segment, int offset)
+  {
+    final ByteBuffer record = record(segment, offset);
+    record.position(record.position() + Long.BYTES);
+    final int namespaceLength = record.getInt();
+    record.position(record.position() + namespaceLength);
+    final int keyLength = record.getInt();
+    record.position(record.position() + keyLength);
+    return recordLength(namespaceLength, keyLength, record.getInt());
+  }
+
+  private static int recordLength(int namespaceLength, int keyLength, int valueLength)
+  {
+    return Long.BYTES + Integer.BYTES * 3 + namespaceLength + keyLength + valueLength;
+  }
+
+  private static long location(int segmentId, int offset)
+  {
+    return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+  }
+
+  private static int segmentId(long location)
+  {
+    return (int) (location >>> 32);
+  }
+
+  private static int offset(long location)
+  {
+    return (int) location;
+  }
+
+  static class Entry
+  {
+    private final byte[] value;
+    private final long expiresAt;
+
+    private Entry(byte[] value, long expiresAt)
+    {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @return The stored bytes
+     */
+    byte[] getValue()
+    {
+      return value;
+    }
+
+    /**
+     * @return When the entry expires, in ms since the epoch
+     */
+    long getExpiresAt()
+    {
+      return expiresAt;
+    }
+  }
+
+  private static class Segment
+  {
+    private final int id;
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final AtomicLong liveBytes = new AtomicLong(0);
+    // The tier's own reference plus one per reader, unmapped when it drops to zero
+    private final AtomicInteger references = new AtomicInteger(1);
+    // Only written under the tier's lock
+    private volatile int position = 0;
+
+    private Segment(int id, File file, MappedByteBuffer buffer)
+    {
+      this.id = id;
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    /**
+     * @return If a reference was taken, false once the segment has been unmapped
+     */
+    private boolean acquire()
+    {
+      int current;
+      do {
+        current = references.get();
+        if (current == 0) {
+          return false;
+        }
+      } while (!references.compareAndSet(current, current + 1));
+      return true;
+    }
+
+    private void release()
+    {
+      if (references.decrementAndGet() == 0) {
+        ByteBufferUtils.unmap(buffer);
+      }
+    }
+  }
+}
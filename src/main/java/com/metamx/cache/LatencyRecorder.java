@@ -0,0 +1,95 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.metamx.emitter.service.ServiceEmitter;
+import com.metamx.emitter.service.ServiceMetricEvent;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Latency distribution of one operation. Recording is wait-free for any number of threads, and every {@link #emit}
+ * reports (and resets) the distribution since the previous one.
+ */
+class LatencyRecorder
+{
+  private static final int SIGNIFICANT_DIGITS = 2;
+
+  private final String metricPrefix;
+  private final boolean enabled;
+  // Only created when enabled, so HdrHistogram is needed on the classpath just for latencyMetrics
+  @Nullable
+  private final Recorder recorder;
+  private Histogram interval = null;
+  private long lastEmitNanos = System.nanoTime();
+
+  /**
+   * @param metricPrefix ex: query/cache/caffeine/get
+   * @param enabled      If false nothing is recorded or emitted
+   */
+  LatencyRecorder(String metricPrefix, boolean enabled)
+  {
+    this.metricPrefix = metricPrefix;
+    this.enabled = enabled;
+    this.recorder = enabled ? new Recorder(SIGNIFICANT_DIGITS) : null;
+  }
+
+  /**
+   * @return The start time to pass to {@link #record(long)}
+   */
+  long start()
+  {
+    return enabled ? System.nanoTime() : 0L;
+  }
+
+  void record(long startNanos)
+  {
+    if (enabled) {
+      recorder.recordValue(System.nanoTime() - startNanos);
+    }
+  }
+
+  synchronized void emit(ServiceEmitter emitter, ServiceMetricEvent.Builder builder)
+  {
+    if (!enabled) {
+      return;
+    }
+    interval = recorder.getIntervalHistogram(interval);
+    final long now = System.nanoTime();
+    final double seconds = Math.max(now - lastEmitNanos, 1) / (double) TimeUnit.SECONDS.toNanos(1);
+    lastEmitNanos = now;
+    emitter.emit(builder.build(metricPrefix + "/count", interval.getTotalCount()));
+    emitter.emit(builder.build(metricPrefix + "/throughput", interval.getTotalCount() / seconds));
+    if (interval.getTotalCount() == 0) {
+      return;
+    }
+    emitter.emit(builder.build(metricPrefix + "/latency/p50", micros(interval.getValueAtPercentile(50))));
+    emitter.emit(builder.build(metricPrefix + "/latency/p99", micros(interval.getValueAtPercentile(99))));
+    emitter.emit(builder.build(metricPrefix + "/latency/p999", micros(interval.getValueAtPercentile(99.9))));
+    emitter.emit(builder.build(metricPrefix + "/latency/max", micros(interval.getMaxValue())));
+  }
+
+  private static double micros(long nanos)
+  {
+    return nanos / 1000.0;
+  }
+}
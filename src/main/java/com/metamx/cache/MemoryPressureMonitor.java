@@ -0,0 +1,160 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.metamx.common.logger.Logger;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Watches the tenured heap pool through JMX. Memory usage threshold notifications signal pressure, and each GC
+ * notification re-checks the pool usage after collection so relief is signalled once it drops below the relief
+ * threshold.
+ */
+class MemoryPressureMonitor implements NotificationListener
+{
+  private static final Logger log = new Logger(MemoryPressureMonitor.class);
+  // com.sun.management.GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION, not referenced to avoid
+  // depending on com.sun classes
+  static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+  private final double threshold;
+  private final double reliefThreshold;
+  private final Runnable onPressure;
+  private final Runnable onRelief;
+  private final List<NotificationEmitter> emitters = new ArrayList<>();
+  @Nullable
+  private MemoryPoolMXBean tenuredPool = null;
+  private long thresholdCount = 0;
+  private boolean underPressure = false;
+
+  /**
+   * @param threshold       Fraction of the tenured pool in use after GC at which pressure is signalled
+   * @param reliefThreshold Fraction of the tenured pool in use after GC under which relief is signalled
+   * @param onPressure      Called on every GC which leaves the tenured pool above the threshold
+   * @param onRelief        Called once the pool drops below the relief threshold after pressure
+   */
+  MemoryPressureMonitor(double threshold, double reliefThreshold, Runnable onPressure, Runnable onRelief)
+  {
+    this.threshold = threshold;
+    this.reliefThreshold = reliefThreshold;
+    this.onPressure = onPressure;
+    this.onRelief = onRelief;
+  }
+
+  synchronized void start()
+  {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      // Only the tenured pool supports both thresholds among the heap pools
+      if (pool.getType() == MemoryType.HEAP
+          && pool.isUsageThresholdSupported()
+          && pool.isCollectionUsageThresholdSupported()) {
+        tenuredPool = pool;
+      }
+    }
+    if (tenuredPool == null) {
+      log.warn("No tenured heap pool found, memory pressure will not shed cache entries");
+      return;
+    }
+    tenuredPool.setCollectionUsageThreshold((long) (threshold * maxBytes(tenuredPool)));
+    thresholdCount = tenuredPool.getCollectionUsageThresholdCount();
+    addListener(ManagementFactory.getMemoryMXBean());
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      addListener(gc);
+    }
+    log.info(
+        "Shedding cache entries when [%s] is above [%,d] bytes after GC",
+        tenuredPool.getName(),
+        tenuredPool.getCollectionUsageThreshold()
+    );
+  }
+
+  synchronized void stop()
+  {
+    for (NotificationEmitter emitter : emitters) {
+      try {
+        emitter.removeNotificationListener(this);
+      }
+      catch (ListenerNotFoundException e) {
+        log.warn(e, "Listener already removed");
+      }
+    }
+    emitters.clear();
+  }
+
+  @Override
+  public void handleNotification(Notification notification, Object handback)
+  {
+    final String type = notification.getType();
+    if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type) || GC_NOTIFICATION.equals(type)) {
+      final MemoryPoolMXBean pool = tenuredPool;
+      if (pool != null && pool.getCollectionUsage() != null) {
+        check(pool.getCollectionUsageThresholdCount(), (double) pool.getCollectionUsage().getUsed() / maxBytes(pool));
+      }
+    }
+  }
+
+  /**
+   * @param newThresholdCount The number of collections which have left the pool above the threshold
+   * @param usage             The fraction of the pool in use after the last collection
+   */
+  synchronized void check(long newThresholdCount, double usage)
+  {
+    // Both the threshold and the GC notification can report the same collection, the count dedupes them
+    if (newThresholdCount > thresholdCount) {
+      thresholdCount = newThresholdCount;
+      underPressure = true;
+      onPressure.run();
+    } else if (underPressure && usage < reliefThreshold) {
+      underPressure = false;
+      onRelief.run();
+    }
+  }
+
+  synchronized boolean isUnderPressure()
+  {
+    return underPressure;
+  }
+
+  private void addListener(Object bean)
+  {
+    if (bean instanceof NotificationEmitter) {
+      final NotificationEmitter emitter = (NotificationEmitter) bean;
+      emitter.addNotificationListener(this, null, null);
+      emitters.add(emitter);
+    }
+  }
+
+  private static long maxBytes(MemoryPoolMXBean pool)
+  {
+    final long max = pool.getUsage().getMax();
+    return max > 0 ? max : Runtime.getRuntime().maxMemory();
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.druid.client.cache.Cache.NamedKey;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Variable expiration by the first {@link CacheExpireRule} matching the namespace of the entry. Namespaces no rule
+ * matches expire after access by expireAfter, or never if it is negative.
+ */
+class NamespaceExpiry implements Expiry<NamedKey, byte[]>
+{
+  private static final Expiration NEVER = new Expiration(Long.MAX_VALUE, false);
+  // Plenty for the namespaces with entries at once, a namespace evicted from here is only matched again
+  static final int MAX_NAMESPACES = 100_000;
+
+  private final List<CacheExpireRule> rules;
+  private final Expiration fallback;
+  // By equality, reads pass the caller's key whose namespace is not the interned instance the entry holds
+  private final Cache<String, Expiration> expirations = Caffeine.newBuilder().maximumSize(MAX_NAMESPACES).build();
+
+  /**
+   * @param rules       In order of precedence
+   * @param expireAfter The time after an access for which the entries of other namespaces may be expired, in ms
+   */
+  NamespaceExpiry(List<CacheExpireRule> rules, long expireAfter)
+  {
+    this.rules = rules;
+    this.fallback = expireAfter >= 0 ? new Expiration(TimeUnit.MILLISECONDS.toNanos(expireAfter), false) : NEVER;
+  }
+
+  @Override
+  public long expireAfterCreate(NamedKey key, byte[] value, long currentTime)
+  {
+    return expirationOf(key.namespace).nanos;
+  }
+
+  @Override
+  public long expireAfterUpdate(NamedKey key, byte[] value, long currentTime, long currentDuration)
+  {
+    return expirationOf(key.namespace).nanos;
+  }
+
+  @Override
+  public long expireAfterRead(NamedKey key, byte[] value, long currentTime, long currentDuration)
+  {
+    final Expiration expiration = expirationOf(key.namespace);
+    return expiration.afterWrite ? currentDuration : expiration.nanos;
+  }
+
+  /**
+   * @return If the entries of the namespace expire after their write, so reads don't extend their lifetime
+   */
+  boolean expiresAfterWrite(String namespace)
+  {
+    return expirationOf(namespace).afterWrite;
+  }
+
+  private Expiration expirationOf(String namespace)
+  {
+    return expirations.get(namespace, this::match);
+  }
+
+  private Expiration match(String namespace)
+  {
+    for (CacheExpireRule rule : rules) {
+      if (rule.matches(namespace)) {
+        return rule.getExpireAfterWrite() >= 0
+               ? new Expiration(TimeUnit.MILLISECONDS.toNanos(rule.getExpireAfterWrite()), true)
+               : new Expiration(TimeUnit.MILLISECONDS.toNanos(rule.getExpireAfterAccess()), false);
+      }
+    }
+    return fallback;
+  }
+
+  private static class Expiration
+  {
+    private final long nanos;
+    // If reads leave the expiration as it is
+    private final boolean afterWrite;
+
+    private Expiration(long nanos, boolean afterWrite)
+    {
+      this.nanos = nanos;
+      this.afterWrite = afterWrite;
+    }
+  }
+}
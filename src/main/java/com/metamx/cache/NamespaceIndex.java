@@ -0,0 +1,94 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import io.druid.client.cache.Cache.NamedKey;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+/**
+ * Keys of the cache grouped by namespace, so closing a namespace only visits its own entries.
+ *
+ * Keys are added after they are put and removed from the removal listener. Both sides re-check the cache afterwards,
+ * so a key which is present in the cache is always present in the index no matter how a put and the removal of a
+ * previous value for the same key interleave.
+ */
+class NamespaceIndex
+{
+  private final ConcurrentMap<String, Set<NamedKey>> index = new ConcurrentHashMap<>();
+  private volatile Predicate<NamedKey> contains = null;
+
+  /**
+   * Must be called before the cache is used, the removal listener is built before the cache is
+   *
+   * @param contains If a key is currently in the cache
+   */
+  void setContains(Predicate<NamedKey> contains)
+  {
+    this.contains = contains;
+  }
+
+  void add(NamedKey key)
+  {
+    index.compute(
+        key.namespace,
+        (namespace, keys) -> {
+          final Set<NamedKey> result = keys == null ? ConcurrentHashMap.newKeySet() : keys;
+          result.add(key);
+          return result;
+        }
+    );
+    if (!contains.test(key)) {
+      remove(key);
+    }
+  }
+
+  void remove(NamedKey key)
+  {
+    index.computeIfPresent(
+        key.namespace,
+        (namespace, keys) -> {
+          if (!contains.test(key)) {
+            keys.remove(key);
+          }
+          return keys.isEmpty() ? null : keys;
+        }
+    );
+  }
+
+  /**
+   * Forget a namespace entirely
+   *
+   * @return The keys of the namespace at the time of the call
+   */
+  Set<NamedKey> removeNamespace(String namespace)
+  {
+    final Set<NamedKey> keys = index.remove(namespace);
+    return keys == null ? Collections.emptySet() : keys;
+  }
+
+  int getNamespaceCount()
+  {
+    return index.size();
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.metamx.common.lifecycle.LifecycleStart;
+import com.metamx.common.lifecycle.LifecycleStop;
+import com.metamx.common.logger.Logger;
+import com.metamx.emitter.service.ServiceEmitter;
+import com.metamx.emitter.service.ServiceMetricEvent;
+import io.druid.client.cache.Cache;
+import io.druid.client.cache.CacheStats;
+import io.druid.concurrent.Execs;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link CaffeineCache} in front of a remote cache. Remote hits populate the local cache, puts go to the local cache
+ * right away and are written behind to the remote cache in batches, and getBulk only asks the remote cache for the
+ * local misses. Writes which don't fit in the write behind queue, by count or by bytes, are dropped.
+ *
+ * Only the local cache and the write behind are started and stopped with this cache, the remote cache is expected to
+ * manage its own connections.
+ */
+public class NearCache implements Cache
+{
+  private static final Logger log = new Logger(NearCache.class);
+  // How often an idle write behind checks if it's stopping
+  private static final long POLL_MILLIS = 100;
+  // How long stopping waits for the batch being written before interrupting it
+  private static final long STOP_TIMEOUT_MILLIS = 30_000;
+
+  private final CaffeineCache local;
+  private final Cache remote;
+  private final int batchSize;
+  private final long maxQueueBytes;
+  private final BlockingQueue<Map.Entry<NamedKey, byte[]>> writes;
+  private final AtomicLong queueBytes = new AtomicLong(0);
+  private final LongAdder remoteHits = new LongAdder();
+  private final LongAdder remoteMisses = new LongAdder();
+  private final LongAdder droppedWrites = new LongAdder();
+  private final AtomicLong priorRemoteHits = new AtomicLong(0);
+  private final AtomicLong priorRemoteMisses = new AtomicLong(0);
+  private final AtomicLong priorDroppedWrites = new AtomicLong(0);
+  private volatile ExecutorService writer = null;
+  private volatile boolean stopping = false;
+
+  /**
+   * @param queueSize  The most puts waiting to be written to the remote cache
+   * @param queueBytes The most key and value bytes of the puts waiting to be written to the remote cache
+   * @param batchSize  The most puts written to the remote cache at once
+   */
+  public NearCache(CaffeineCache local, Cache remote, int queueSize, long queueBytes, int batchSize)
+  {
+    this.local = local;
+    this.remote = remote;
+    this.batchSize = batchSize;
+    this.maxQueueBytes = queueBytes;
+    this.writes = new ArrayBlockingQueue<>(queueSize);
+  }
+
+  @Override
+  public byte[] get(NamedKey key)
+  {
+    final byte[] value = local.get(key);
+    if (value != null) {
+      return value;
+    }
+    final byte[] remoteValue = remote.get(key);
+    if (remoteValue == null) {
+      remoteMisses.increment();
+      return null;
+    }
+    remoteHits.increment();
+    local.put(key, remoteValue);
+    return remoteValue;
+  }
+
+  @Override
+  public void put(NamedKey key, byte[] value)
+  {
+    local.put(key, value);
+    final int bytes = bytes(key, value);
+    if (queueBytes.addAndGet(bytes) > maxQueueBytes
+        || !writes.offer(new AbstractMap.SimpleImmutableEntry<>(key, value))) {
+      queueBytes.addAndGet(-bytes);
+      droppedWrites.increment();
+    }
+  }
+
+  @Override
+  public Map<NamedKey, byte[]> getBulk(Iterable<NamedKey> keys)
+  {
+    final Map<NamedKey, byte[]> values = local.getBulk(keys);
+    final List<NamedKey> misses = new ArrayList<>();
+    for (NamedKey key : keys) {
+      if (!values.containsKey(key)) {
+        misses.add(key);
+      }
+    }
+    if (misses.isEmpty()) {
+      return values;
+    }
+    final Map<NamedKey, byte[]> remoteValues = remote.getBulk(misses);
+    remoteHits.add(remoteValues.size());
+    remoteMisses.add(misses.size() - remoteValues.size());
+    if (remoteValues.isEmpty()) {
+      return values;
+    }
+    final Map<NamedKey, byte[]> all = new HashMap<>(values);
+    for (Map.Entry<NamedKey, byte[]> entry : remoteValues.entrySet()) {
+      local.put(entry.getKey(), entry.getValue());
+      all.put(entry.getKey(), entry.getValue());
+    }
+    return all;
+  }
+
+  @Override
+  public void close(String namespace)
+  {
+    local.close(namespace);
+    remote.close(namespace);
+  }
+
+  /**
+   * @return The stats of the local cache, the remote cache reports its own through {@link #doMonitor}
+   */
+  @Override
+  public CacheStats getStats()
+  {
+    return local.getStats();
+  }
+
+  @Override
+  public boolean isLocal()
+  {
+    return false;
+  }
+
+  @Override
+  public void doMonitor(ServiceEmitter emitter)
+  {
+    local.doMonitor(emitter);
+    remote.doMonitor(emitter);
+    final ServiceMetricEvent.Builder builder = ServiceMetricEvent.builder();
+    emit(emitter, builder, "remoteHits", remoteHits, priorRemoteHits);
+    emit(emitter, builder, "remoteMisses", remoteMisses, priorRemoteMisses);
+    emit(emitter, builder, "droppedRemoteWrites", droppedWrites, priorDroppedWrites);
+    emitter.emit(builder.build("query/cache/caffeine/remoteWrites/pending", writes.size()));
+    emitter.emit(builder.build("query/cache/caffeine/remoteWrites/pendingBytes", queueBytes.get()));
+  }
+
+  private static void emit(
+      ServiceEmitter emitter,
+      ServiceMetricEvent.Builder builder,
+      String name,
+      LongAdder counter,
+      AtomicLong prior
+  )
+  {
+    final long total = counter.sum();
+    emitter.emit(builder.build("query/cache/caffeine/total/" + name, total));
+    emitter.emit(builder.build("query/cache/caffeine/delta/" + name, total - prior.getAndSet(total)));
+  }
+
+  @LifecycleStart
+  public void start()
+  {
+    local.start();
+    stopping = false;
+    writer = Execs.singleThreaded("CaffeineWriteBehind-%s");
+    writer.submit(this::writeBehind);
+  }
+
+  @LifecycleStop
+  public void stop()
+  {
+    final ExecutorService writer = this.writer;
+    if (writer != null) {
+      this.writer = null;
+      // Let the batch being written finish, so only this thread drains the queue from here on
+      stopping = true;
+      writer.shutdown();
+      try {
+        if (!writer.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+          log.warn("Remote cache write behind still busy after [%,d] ms, interrupting it", STOP_TIMEOUT_MILLIS);
+          writer.shutdownNow();
+        }
+      }
+      catch (InterruptedException e) {
+        writer.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+    }
+    // Whatever is still queued is written on the way out
+    flush();
+    local.stop();
+  }
+
+  private void writeBehind()
+  {
+    final List<Map.Entry<NamedKey, byte[]>> batch = new ArrayList<>(batchSize);
+    try {
+      while (!stopping && !Thread.currentThread().isInterrupted()) {
+        final Map.Entry<NamedKey, byte[]> first = writes.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        writes.drainTo(batch, batchSize - 1);
+        write(batch);
+        batch.clear();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Write all the queued puts to the remote cache on the calling thread
+   */
+  void flush()
+  {
+    final List<Map.Entry<NamedKey, byte[]>> batch = new ArrayList<>(batchSize);
+    while (writes.drainTo(batch, batchSize) > 0) {
+      write(batch);
+      batch.clear();
+    }
+  }
+
+  private void write(List<Map.Entry<NamedKey, byte[]>> batch)
+  {
+    for (Map.Entry<NamedKey, byte[]> entry : batch) {
+      try {
+        remote.put(entry.getKey(), entry.getValue());
+      }
+      catch (RuntimeException e) {
+        log.warn(e, "Failed to write to the remote cache");
+      }
+      finally {
+        queueBytes.addAndGet(-bytes(entry.getKey(), entry.getValue()));
+      }
+    }
+  }
+
+  private static int bytes(NamedKey key, byte[] value)
+  {
+    return key.key.length + value.length;
+  }
+
+  int getPendingWrites()
+  {
+    return writes.size();
+  }
+
+  long getPendingWriteBytes()
+  {
+    return queueBytes.get();
+  }
+}
@@ -0,0 +1,386 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.google.common.base.Preconditions;
+import com.metamx.common.logger.Logger;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import javax.annotation.Nullable;
+
+/**
+ * Slab allocator over direct ByteBuffers. Payloads are copied into fixed size chunks and the caller keeps a small
+ * on-heap handle (slab, chunk, length, generation) instead of the payload itself.
+ *
+ * Chunks are only recycled through {@link #release(byte[])}. A handle which has been released (or whose chunk has been
+ * handed out again) fails its generation check on {@link #load(byte[])} and reads as a miss. A slab whose chunks are
+ * all free is returned to the system, unless it is the last slab of its chunk size, so a shift in the sizes of the
+ * payloads doesn't leave every chunk size holding its peak number of slabs.
+ */
+public class OffHeapStore
+{
+  private static final Logger log = new Logger(OffHeapStore.class);
+  private static final int MIN_CHUNK_SIZE = 64;
+  private static final double GROWTH_FACTOR = 1.25;
+  private static final int HANDLE_SIZE = 16;
+  private static final int INVALID_GENERATION = 0;
+
+  private final int slabSize;
+  private final int[] chunkSizes;
+  private final SizeClass[] sizeClasses;
+  private final AtomicInteger generation = new AtomicInteger(INVALID_GENERATION);
+  private final AtomicLong allocatedBytes = new AtomicLong(0);
+  private final AtomicLong usedBytes = new AtomicLong(0);
+  private final ArrayDeque<Integer> freeSlabIds = new ArrayDeque<>();
+  private volatile Slab[] slabs = new Slab[16];
+  private int nextSlabId = 0;
+
+  public OffHeapStore(int slabSize)
+  {
+    Preconditions.checkArgument(slabSize >= MIN_CHUNK_SIZE, "slabSize must be at least %s", MIN_CHUNK_SIZE);
+    this.slabSize = slabSize;
+    int[] sizes = new int[8];
+    int count = 0;
+    for (int size = MIN_CHUNK_SIZE; size < slabSize; size = align((int) Math.min(size * GROWTH_FACTOR, slabSize))) {
+      if (count == sizes.length) {
+        sizes = Arrays.copyOf(sizes, count * 2);
+      }
+      sizes[count++] = size;
+    }
+    this.chunkSizes = Arrays.copyOf(sizes, count + 1);
+    this.chunkSizes[count] = slabSize;
+    this.sizeClasses = new SizeClass[chunkSizes.length];
+    for (int i = 0; i < chunkSizes.length; ++i) {
+      sizeClasses[i] = new SizeClass(chunkSizes[i]);
+    }
+  }
+
+  /**
+   * Copy the payload off heap.
+   *
+   * @return The handle to the stored payload, or null if direct memory could not be allocated.
+   */
+  @Nullable
+  public byte[] store(byte[] payload)
+  {
+    return store(payload, 0, payload.length);
+  }
+
+  /**
+   * Copy {@code length} bytes of {@code payload} starting at {@code offset} off heap.
+   *
+   * @return The handle to the stored payload, or null if direct memory could not be allocated.
+   */
+  @Nullable
+  public byte[] store(byte[] payload, int offset, int length)
+  {
+    final long chunk;
+    try {
+      chunk = allocate(length);
+    }
+    catch (OutOfMemoryError e) {
+      // Direct memory exhaustion is reported as an OOME, but the heap is fine. Just don't cache the value.
+      log.warn(e, "Unable to allocate [%,d] bytes off heap", length);
+      return null;
+    }
+    final int slabId = (int) (chunk >>> 32);
+    final int chunkIndex = (int) chunk;
+    final Slab slab = slabs[slabId];
+    final int gen = nextGeneration();
+    final ByteBuffer buffer = slab.buffer.duplicate();
+    buffer.position(chunkIndex * slab.chunkSize);
+    buffer.put(payload, offset, length);
+    slab.generations[chunkIndex] = gen;
+    usedBytes.addAndGet(length);
+    return ByteBuffer.allocate(HANDLE_SIZE).putInt(slabId).putInt(chunkIndex).putInt(length).putInt(gen).array();
+  }
+
+  /**
+   * @return A heap copy of the payload for the handle, or null if the handle has been released.
+   */
+  @Nullable
+  public byte[] load(byte[] handle)
+  {
+    final ByteBuffer h = ByteBuffer.wrap(handle);
+    final int slabId = h.getInt();
+    final int chunkIndex = h.getInt();
+    final int length = h.getInt();
+    final int gen = h.getInt();
+    final Slab slab = slabOf(slabId, chunkIndex);
+    if (slab == null) {
+      return null;
+    }
+    final byte[] out = new byte[length];
+    long stamp = slab.lock.tryOptimisticRead();
+    if (slab.generations[chunkIndex] == gen) {
+      copy(slab, chunkIndex, out);
+      if (slab.lock.validate(stamp)) {
+        return out;
+      }
+    }
+    stamp = slab.lock.readLock();
+    try {
+      if (slab.generations[chunkIndex] != gen) {
+        return null;
+      }
+      copy(slab, chunkIndex, out);
+      return out;
+    }
+    finally {
+      slab.lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Return the chunk behind the handle to the allocator. Must be called exactly once per stored handle.
+   */
+  public void release(byte[] handle)
+  {
+    final ByteBuffer h = ByteBuffer.wrap(handle);
+    final int slabId = h.getInt();
+    final int chunkIndex = h.getInt();
+    final int length = h.getInt();
+    final int gen = h.getInt();
+    final Slab slab = slabOf(slabId, chunkIndex);
+    if (slab == null) {
+      log.warn("Ignoring release of slab [%d] chunk [%d], the slab has been freed", slabId, chunkIndex);
+      return;
+    }
+    final long stamp = slab.lock.writeLock();
+    try {
+      // Generations are never reused, so this also tells a chunk of a new slab which took over the id
+      if (slab.generations[chunkIndex] != gen) {
+        log.warn("Ignoring double release of slab [%d] chunk [%d]", slabId, chunkIndex);
+        return;
+      }
+      slab.generations[chunkIndex] = INVALID_GENERATION;
+    }
+    finally {
+      slab.lock.unlockWrite(stamp);
+    }
+    usedBytes.addAndGet(-length);
+    final SizeClass sizeClass = slab.sizeClass;
+    if (sizeClass == null) {
+      freeSlab(slabId);
+      return;
+    }
+    synchronized (sizeClass) {
+      sizeClass.push(((long) slabId << 32) | chunkIndex);
+      if (--slab.liveChunks == 0 && sizeClass.slabCount > 1) {
+        sizeClass.removeSlab(slabId);
+        freeSlab(slabId);
+      }
+    }
+  }
+
+  /**
+   * @return The payload length referenced by a handle
+   */
+  public static int length(byte[] handle)
+  {
+    return ByteBuffer.wrap(handle).getInt(Integer.BYTES * 2);
+  }
+
+  /**
+   * @return The direct memory taken by the payload of the handle, which is the size of its chunk
+   */
+  public int allocatedLength(byte[] handle)
+  {
+    final int length = length(handle);
+    return length > slabSize ? length : chunkSizes[classIndex(length)];
+  }
+
+  /**
+   * @return Direct memory held by the slabs, including free chunks and per-chunk slack
+   */
+  public long getAllocatedBytes()
+  {
+    return allocatedBytes.get();
+  }
+
+  /**
+   * @return Payload bytes currently stored
+   */
+  public long getUsedBytes()
+  {
+    return usedBytes.get();
+  }
+
+  private long allocate(int length)
+  {
+    if (length > slabSize) {
+      return (long) newSlab(length, length, 1, null) << 32;
+    }
+    final SizeClass sizeClass = sizeClasses[classIndex(length)];
+    synchronized (sizeClass) {
+      if (sizeClass.freeCount == 0) {
+        final int chunkCount = slabSize / sizeClass.chunkSize;
+        final int slabId = newSlab(slabSize, sizeClass.chunkSize, chunkCount, sizeClass);
+        for (int i = chunkCount - 1; i > 0; --i) {
+          sizeClass.push(((long) slabId << 32) | i);
+        }
+        slabs[slabId].liveChunks = 1;
+        ++sizeClass.slabCount;
+        return (long) slabId << 32;
+      }
+      final long chunk = sizeClass.pop();
+      ++slabs[(int) (chunk >>> 32)].liveChunks;
+      return chunk;
+    }
+  }
+
+  private int classIndex(int length)
+  {
+    final int classIndex = Arrays.binarySearch(chunkSizes, length);
+    return classIndex < 0 ? -classIndex - 1 : classIndex;
+  }
+
+  private synchronized int newSlab(int capacity, int chunkSize, int chunkCount, @Nullable SizeClass sizeClass)
+  {
+    final Slab slab = new Slab(ByteBuffer.allocateDirect(capacity), chunkSize, chunkCount, sizeClass);
+    allocatedBytes.addAndGet(slab.buffer.capacity());
+    final int slabId;
+    if (freeSlabIds.isEmpty()) {
+      slabId = nextSlabId++;
+      if (slabId == slabs.length) {
+        slabs = Arrays.copyOf(slabs, slabId * 2);
+      }
+    } else {
+      slabId = freeSlabIds.pop();
+    }
+    final Slab[] current = slabs;
+    current[slabId] = slab;
+    // Volatile write to publish the new slab
+    slabs = current;
+    return slabId;
+  }
+
+  private synchronized void freeSlab(int slabId)
+  {
+    final Slab[] current = slabs;
+    allocatedBytes.addAndGet(-current[slabId].buffer.capacity());
+    // The direct buffer is freed by its cleaner once it is no longer reachable
+    current[slabId] = null;
+    slabs = current;
+    freeSlabIds.push(slabId);
+  }
+
+  /**
+   * @return The slab holding the chunk, or null if the handle points past the slabs, at a freed slab or at a slab with
+   * fewer chunks which took over the id
+   */
+  @Nullable
+  private Slab slabOf(int slabId, int chunkIndex)
+  {
+    final Slab[] current = slabs;
+    if (slabId < 0 || slabId >= current.length) {
+      return null;
+    }
+    final Slab slab = current[slabId];
+    return slab == null || chunkIndex < 0 || chunkIndex >= slab.generations.length ? null : slab;
+  }
+
+  private int nextGeneration()
+  {
+    int gen;
+    do {
+      gen = generation.incrementAndGet();
+    } while (gen == INVALID_GENERATION);
+    return gen;
+  }
+
+  private static void copy(Slab slab, int chunkIndex, byte[] out)
+  {
+    final ByteBuffer buffer = slab.buffer.duplicate();
+    buffer.position(chunkIndex * slab.chunkSize);
+    buffer.get(out);
+  }
+
+  private static int align(int size)
+  {
+    return (size + 7) & ~7;
+  }
+
+  private static class Slab
+  {
+    private final ByteBuffer buffer;
+    private final int chunkSize;
+    private final int[] generations;
+    private final StampedLock lock = new StampedLock();
+    // null for slabs dedicated to a single oversized payload
+    @Nullable
+    private final SizeClass sizeClass;
+    // Chunks handed out and not released yet, guarded by the size class
+    private int liveChunks = 0;
+
+    private Slab(ByteBuffer buffer, int chunkSize, int chunkCount, @Nullable SizeClass sizeClass)
+    {
+      this.buffer = buffer;
+      this.chunkSize = chunkSize;
+      this.generations = new int[chunkCount];
+      this.sizeClass = sizeClass;
+    }
+  }
+
+  private static class SizeClass
+  {
+    private final int chunkSize;
+    private long[] free = new long[16];
+    private int freeCount = 0;
+    private int slabCount = 0;
+
+    private SizeClass(int chunkSize)
+    {
+      this.chunkSize = chunkSize;
+    }
+
+    private synchronized void push(long chunk)
+    {
+      if (freeCount == free.length) {
+        free = Arrays.copyOf(free, freeCount * 2);
+      }
+      free[freeCount++] = chunk;
+    }
+
+    private synchronized long pop()
+    {
+      return free[--freeCount];
+    }
+
+    /**
+     * Forget the free chunks of a slab which is about to be freed
+     */
+    private synchronized void removeSlab(int slabId)
+    {
+      int kept = 0;
+      for (int i = 0; i < freeCount; ++i) {
+        if ((int) (free[i] >>> 32) != slabId) {
+          free[kept++] = free[i];
+        }
+      }
+      freeCount = kept;
+      --slabCount;
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.metamx.emitter.service.ServiceEmitter;
+import com.metamx.emitter.service.ServiceMetricEvent;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sizes of the values put into the cache, before and after compression.
+ */
+class PayloadStats
+{
+  private static final long[] BUCKET_LIMITS = {1L << 10, 16L << 10, 256L << 10, 4L << 20, Long.MAX_VALUE};
+  private static final String[] BUCKET_NAMES = {"1KiB", "16KiB", "256KiB", "4MiB", "larger"};
+
+  private final LongAdder rawBytes = new LongAdder();
+  private final LongAdder storedBytes = new LongAdder();
+  private final LongAdder compressedValues = new LongAdder();
+  private final LongAdder[] bucketCounts = new LongAdder[BUCKET_LIMITS.length];
+  private final AtomicReference<Snapshot> priorSnapshot = new AtomicReference<>(null);
+
+  PayloadStats()
+  {
+    for (int i = 0; i < bucketCounts.length; ++i) {
+      bucketCounts[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * @param rawLength    The length of the value as given to the cache
+   * @param storedLength The length of the serialized value, including its header
+   * @param compressed   If the stored value is compressed
+   */
+  void record(int rawLength, int storedLength, boolean compressed)
+  {
+    rawBytes.add(rawLength);
+    storedBytes.add(storedLength);
+    if (compressed) {
+      compressedValues.increment();
+    }
+    int bucket = 0;
+    while (rawLength > BUCKET_LIMITS[bucket]) {
+      ++bucket;
+    }
+    bucketCounts[bucket].increment();
+  }
+
+  Snapshot snapshot()
+  {
+    final long[] buckets = new long[bucketCounts.length];
+    for (int i = 0; i < buckets.length; ++i) {
+      buckets[i] = bucketCounts[i].sum();
+    }
+    return new Snapshot(rawBytes.sum(), storedBytes.sum(), compressedValues.sum(), buckets);
+  }
+
+  void emit(ServiceEmitter emitter, ServiceMetricEvent.Builder builder)
+  {
+    final Snapshot newSnapshot = snapshot();
+    // Racing monitors are already warned about by the cache stats
+    final Snapshot oldSnapshot = priorSnapshot.getAndSet(newSnapshot);
+    newSnapshot.emit(emitter, builder, "total");
+    (oldSnapshot == null ? newSnapshot : newSnapshot.minus(oldSnapshot)).emit(emitter, builder, "delta");
+  }
+
+  static class Snapshot
+  {
+    private final long rawBytes;
+    private final long storedBytes;
+    private final long compressedValues;
+    private final long[] bucketCounts;
+
+    private Snapshot(long rawBytes, long storedBytes, long compressedValues, long[] bucketCounts)
+    {
+      this.rawBytes = rawBytes;
+      this.storedBytes = storedBytes;
+      this.compressedValues = compressedValues;
+      this.bucketCounts = bucketCounts;
+    }
+
+    long getRawBytes()
+    {
+      return rawBytes;
+    }
+
+    long getStoredBytes()
+    {
+      return storedBytes;
+    }
+
+    long getCompressedValues()
+    {
+      return compressedValues;
+    }
+
+    long getValues()
+    {
+      long values = 0;
+      for (long count : bucketCounts) {
+        values += count;
+      }
+      return values;
+    }
+
+    /**
+     * @return Raw bytes per stored byte, or 1 if nothing was stored
+     */
+    double getCompressionRatio()
+    {
+      return storedBytes == 0 ? 1.0 : (double) rawBytes / storedBytes;
+    }
+
+    Snapshot minus(Snapshot other)
+    {
+      final long[] buckets = new long[bucketCounts.length];
+      for (int i = 0; i < buckets.length; ++i) {
+        buckets[i] = bucketCounts[i] - other.bucketCounts[i];
+      }
+      return new Snapshot(
+          rawBytes - other.rawBytes,
+          storedBytes - other.storedBytes,
+          compressedValues - other.compressedValues,
+          buckets
+      );
+    }
+
+    private void emit(ServiceEmitter emitter, ServiceMetricEvent.Builder builder, String kind)
+    {
+      final String prefix = "query/cache/caffeine/" + kind;
+      emitter.emit(builder.build(prefix + "/rawBytes", rawBytes));
+      emitter.emit(builder.build(prefix + "/storedBytes", storedBytes));
+      emitter.emit(builder.build(prefix + "/compressedValues", compressedValues));
+      emitter.emit(builder.build(prefix + "/compressionRatio", getCompressionRatio()));
+      for (int i = 0; i < bucketCounts.length; ++i) {
+        final ServiceMetricEvent.Builder bucketBuilder = ServiceMetricEvent.builder()
+                                                                           .setDimension("sizeBucket", BUCKET_NAMES[i]);
+        emitter.emit(bucketBuilder.build(prefix + "/values", bucketCounts[i]));
+      }
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays an {@link AccessTrace} against candidate sizes, expirations and eviction policies, to pick sizeInBytes and
+ * expireAfter without experimenting in production. Each simulated cache is scaled down by the sample rate of the
+ * trace. Gets look the key up and puts insert it, like the cache sees them from its callers.
+ *
+ * Usage: {@code java -cp <classpath> com.metamx.cache.TraceSimulator <trace> <sizeInBytes,...> [expireAfter,...]}
+ */
+public class TraceSimulator
+{
+  interface SimulatedCache
+  {
+    boolean get(long keyHash, long millis);
+
+    void put(long keyHash, int weight, long millis);
+  }
+
+  /**
+   * Caffeine itself, which is what the cache uses
+   */
+  static class TinyLfuCache implements SimulatedCache
+  {
+    private final Cache<Long, Integer> cache;
+    private long nowMillis = 0;
+
+    TinyLfuCache(long maximumWeight, long expireAfter)
+    {
+      final Caffeine<Object, Object> builder = Caffeine.newBuilder()
+                                                       .executor(Runnable::run)
+                                                       .ticker(() -> TimeUnit.MILLISECONDS.toNanos(nowMillis));
+      if (expireAfter >= 0) {
+        builder.expireAfterAccess(expireAfter, TimeUnit.MILLISECONDS);
+      }
+      this.cache = builder.maximumWeight(maximumWeight).weigher((Long key, Integer weight) -> weight).build();
+    }
+
+    @Override
+    public boolean get(long keyHash, long millis)
+    {
+      nowMillis = millis;
+      return cache.getIfPresent(keyHash) != null;
+    }
+
+    @Override
+    public void put(long keyHash, int weight, long millis)
+    {
+      nowMillis = millis;
+      cache.put(keyHash, weight);
+    }
+  }
+
+  /**
+   * Plain least recently used, the baseline the frequency based admission has to beat
+   */
+  static class LruCache implements SimulatedCache
+  {
+    // Key hash to the weight and the last access time
+    private final LinkedHashMap<Long, long[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maximumWeight;
+    private final long expireAfter;
+    private long weight = 0;
+
+    LruCache(long maximumWeight, long expireAfter)
+    {
+      this.maximumWeight = maximumWeight;
+      this.expireAfter = expireAfter;
+    }
+
+    @Override
+    public boolean get(long keyHash, long millis)
+    {
+      final long[] entry = entries.get(keyHash);
+      if (entry == null) {
+        return false;
+      }
+      if (expireAfter >= 0 && millis - entry[1] > expireAfter) {
+        entries.remove(keyHash);
+        weight -= entry[0];
+        return false;
+      }
+      entry[1] = millis;
+      return true;
+    }
+
+    @Override
+    public void put(long keyHash, int entryWeight, long millis)
+    {
+      final long[] old = entries.put(keyHash, new long[]{entryWeight, millis});
+      weight += entryWeight - (old == null ? 0 : old[0]);
+      final Iterator<long[]> eldest = entries.values().iterator();
+      while (weight > maximumWeight && eldest.hasNext()) {
+        weight -= eldest.next()[0];
+        eldest.remove();
+      }
+    }
+  }
+
+  static class Simulation
+  {
+    private final String policy;
+    private final long sizeInBytes;
+    private final long expireAfter;
+    private final SimulatedCache cache;
+    private long requests = 0;
+    private long hits = 0;
+
+    Simulation(String policy, long sizeInBytes, long expireAfter, SimulatedCache cache)
+    {
+      this.policy = policy;
+      this.sizeInBytes = sizeInBytes;
+      this.expireAfter = expireAfter;
+      this.cache = cache;
+    }
+
+    void replay(byte op, long millis, long keyHash, int weight)
+    {
+      if (op == AccessTrace.OP_PUT) {
+        cache.put(keyHash, weight, millis);
+      } else {
+        ++requests;
+        if (cache.get(keyHash, millis)) {
+          ++hits;
+        }
+      }
+    }
+
+    long getSizeInBytes()
+    {
+      return sizeInBytes;
+    }
+
+    double getHitRatio()
+    {
+      return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("%-8s %,20d %,14d %10.4f", policy, sizeInBytes, expireAfter, getHitRatio());
+    }
+  }
+
+  /**
+   * @return One simulation per policy for each size and expiration, in the order they should be reported
+   */
+  static List<Simulation> simulations(double sampleRate, long[] sizes, long[] expirations)
+  {
+    final List<Simulation> simulations = new ArrayList<>();
+    for (long expireAfter : expirations) {
+      for (long size : sizes) {
+        final long scaled = Math.max((long) (size * sampleRate), 1);
+        simulations.add(new Simulation("tinylfu", size, expireAfter, new TinyLfuCache(scaled, expireAfter)));
+        simulations.add(new Simulation("lru", size, expireAfter, new LruCache(scaled, expireAfter)));
+      }
+    }
+    return simulations;
+  }
+
+  /**
+   * @return The simulations, after replaying the whole trace against each
+   */
+  static List<Simulation> simulate(String tracePath, long[] sizes, long[] expirations) throws IOException
+  {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tracePath), 1 << 16))) {
+      final List<Simulation> simulations = simulations(AccessTrace.readHeader(in), sizes, expirations);
+      AccessTrace.readRecords(
+          in,
+          (op, millis, keyHash, weight) -> {
+            for (Simulation simulation : simulations) {
+              simulation.replay(op, millis, keyHash, weight);
+            }
+          }
+      );
+      return simulations;
+    }
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length < 2) {
+      System.err.println("Usage: TraceSimulator <trace> <sizeInBytes,...> [expireAfter,...]");
+      System.exit(1);
+    }
+    final long[] sizes = parseLongs(args[1]);
+    final long[] expirations = args.length > 2 ? parseLongs(args[2]) : new long[]{-1};
+    System.out.println(String.format("%-8s %20s %14s %10s", "policy", "sizeInBytes", "expireAfter", "hitRatio"));
+    for (Simulation simulation : simulate(args[0], sizes, expirations)) {
+      System.out.println(simulation);
+    }
+  }
+
+  private static long[] parseLongs(String list)
+  {
+    final String[] parts = list.split(",");
+    final long[] values = new long[parts.length];
+    for (int i = 0; i < parts.length; ++i) {
+      values[i] = Long.parseLong(parts[i].trim());
+    }
+    return values;
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed to Metamarkets Group Inc. (Metamarkets) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Metamarkets licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.metamx.cache;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.metamx.emitter.service.ServiceEmitter;
+import com.metamx.emitter.service.ServiceMetricEvent;
+import io.druid.client.cache.Cache.NamedKey;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import javax.annotation.Nullable;
+
+/**
+ * Shares one stored body between all the keys whose serialized values are byte for byte the same. Bodies are found by
+ * a hash of the serialized value, compared in full before being shared, and reference counted so the body (or its off
+ * heap payload) is only released along with the last entry holding it.
+ *
+ * One of the keys holding a body is charged for it, the others only for themselves. If the charged key goes away
+ * first, another key holding the body takes over the charge and is handed to the charge listener to be weighed again.
+ */
+class ValueDedup
+{
+  // The body, its hash code, the entries of both maps and the holders map, charged along with the body
+  static final int BODY_OVERHEAD = 32 + 48 + 40 + 40 + 48;
+  // The entry of a key in the holders of its body and its count
+  static final int HOLDER_OVERHEAD = 32 + 16;
+  private static final HashFunction HASHING = Hashing.murmur3_128();
+
+  @Nullable
+  private final OffHeapStore offHeapStore;
+  private final ConcurrentMap<HashCode, Body> bodies = new ConcurrentHashMap<>();
+  // By identity of the stored array, which is what the cache entries hold. The keys are only weak for identity
+  private final ConcurrentMap<byte[], Body> byStored = new MapMaker().weakKeys().makeMap();
+  private final AtomicLong sharedBytes = new AtomicLong(0);
+  private volatile BiConsumer<NamedKey, byte[]> chargeListener = (key, stored) -> {
+  };
+
+  /**
+   * @param offHeapStore Store the bodies live in, if null they are heap arrays
+   */
+  ValueDedup(@Nullable OffHeapStore offHeapStore)
+  {
+    this.offHeapStore = offHeapStore;
+  }
+
+  /**
+   * @param chargeListener Called with the key and stored body whenever a key takes over the charge for a body, outside
+   *                       of any lock
+   */
+  void setChargeListener(BiConsumer<NamedKey, byte[]> chargeListener)
+  {
+    this.chargeListener = chargeListener;
+  }
+
+  /**
+   * @param key    The key which is going to hold the body
+   * @param value  Buffer holding the serialized value, which is copied
+   * @param length The length of the serialized value
+   *
+   * @return The stored body for the key to hold, or null if it could not be stored
+   */
+  @Nullable
+  byte[] share(NamedKey key, byte[] value, int length)
+  {
+    final HashCode hash = HASHING.hashBytes(value, 0, length);
+    // Copied outside of the bin, storing off heap may allocate a slab. Only when there's no body to share, most likely
+    byte[] copy = null;
+    while (true) {
+      final Body found = bodies.get(hash);
+      if (copy == null && (found == null || !found.holds(value, length))) {
+        copy = store(value, length);
+        if (copy == null) {
+          return null;
+        }
+      }
+      final byte[] fresh = copy;
+      final byte[][] stored = new byte[1][];
+      bodies.compute(
+          hash,
+          (h, body) -> {
+            if (body == null) {
+              // Released since it was found otherwise, retried with a copy
+              if (fresh != null) {
+                stored[0] = fresh;
+                final Body created = new Body(h, fresh, length, key);
+                byStored.put(fresh, created);
+                return created;
+              }
+              return null;
+            }
+            if (body.holds(value, length)) {
+              body.hold(key);
+              sharedBytes.addAndGet(length);
+              stored[0] = body.stored;
+            } else {
+              // Hash collision, the value is stored on its own
+              stored[0] = fresh;
+            }
+            return body;
+          }
+      );
+      if (stored[0] != null) {
+        if (copy != null && stored[0] != copy) {
+          // Another thread stored the same value first
+          free(copy);
+        }
+        return stored[0];
+      }
+    }
+  }
+
+  /**
+   * Drop the reference of a removed entry, or the one {@link #share} took for an entry which got back the body it
+   * already held. Releases the body once no entry holds it.
+   */
+  void release(NamedKey key, byte[] stored)
+  {
+    final Body body = byStored.get(stored);
+    if (body == null) {
+      // Not shared
+      free(stored);
+      return;
+    }
+    final NamedKey[] charged = new NamedKey[1];
+    bodies.computeIfPresent(
+        body.hash,
+        (h, current) -> {
+          if (current != body) {
+            return current;
+          }
+          if (body.release(key) == 0) {
+            byStored.remove(stored);
+            free(stored);
+            return null;
+          }
+          sharedBytes.addAndGet(-body.length);
+          if (key.equals(body.chargedTo) && !body.holders.containsKey(key)) {
+            charged[0] = body.holders.keySet().iterator().next();
+            body.chargedTo = charged[0];
+          }
+          return body;
+        }
+    );
+    if (charged[0] != null) {
+      // Outside of the bin, weighing it again may evict entries which release their own bodies
+      chargeListener.accept(charged[0], stored);
+    }
+  }
+
+  /**
+   * @return If the entry of key is charged for its stored body, which is true for bodies which are not shared
+   */
+  boolean isCharged(NamedKey key, byte[] stored)
+  {
+    final Body body = byStored.get(stored);
+    return body == null || key.equals(body.chargedTo);
+  }
+
+  int getValues()
+  {
+    return bodies.size();
+  }
+
+  long getSharedBytes()
+  {
+    return sharedBytes.get();
+  }
+
+  void emit(ServiceEmitter emitter, ServiceMetricEvent.Builder builder)
+  {
+    emitter.emit(builder.build("query/cache/caffeine/dedup/values", getValues()));
+    emitter.emit(builder.build("query/cache/caffeine/dedup/sharedBytes", getSharedBytes()));
+  }
+
+  @Nullable
+  private byte[] store(byte[] value, int length)
+  {
+    return offHeapStore == null ? Arrays.copyOf(value, length) : offHeapStore.store(value, 0, length);
+  }
+
+  private void free(byte[] stored)
+  {
+    if (offHeapStore != null) {
+      offHeapStore.release(stored);
+    }
+  }
+
+  private class Body
+  {
+    private final HashCode hash;
+    private final byte[] stored;
+    private final int length;
+    // The number of entries of each key holding the body, more than one only while a replaced entry awaits its
+    // removal. Only changed while holding the bin of the hash in bodies
+    private final Map<NamedKey, Integer> holders = new HashMap<>(2);
+    private int refs = 0;
+    // Always one of the holders
+    private volatile NamedKey chargedTo;
+
+    private Body(HashCode hash, byte[] stored, int length, NamedKey chargedTo)
+    {
+      this.hash = hash;
+      this.stored = stored;
+      this.length = length;
+      this.chargedTo = chargedTo;
+      hold(chargedTo);
+    }
+
+    private void hold(NamedKey key)
+    {
+      holders.merge(key, 1, Integer::sum);
+      ++refs;
+    }
+
+    /**
+     * @return The references left
+     */
+    private int release(NamedKey key)
+    {
+      holders.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1);
+      return --refs;
+    }
+
+    private boolean holds(byte[] value, int length)
+    {
+      if (length != this.length) {
+        return false;
+      }
+      final byte[] bytes = offHeapStore == null ? stored : offHeapStore.load(stored);
+      return bytes != null && ByteBuffer.wrap(bytes).equals(ByteBuffer.wrap(value, 0, length));
+    }
+  }
+}
@@ -20,14 +20,21 @@
 package com.metamx.cache;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.inject.Binder;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.inject.Module;
 import com.google.inject.name.Names;
 import com.metamx.common.lifecycle.Lifecycle;
+import com.metamx.emitter.core.Emitter;
+import com.metamx.emitter.core.Event;
+import com.metamx.emitter.service.ServiceEmitter;
+import com.metamx.emitter.service.ServiceMetricEvent;
 import io.druid.client.cache.Cache;
 import io.druid.client.cache.CacheProvider;
 import io.druid.client.cache.CacheStats;
@@ -36,19 +43,44 @@ import io.druid.guice.JsonConfigProvider;
 import io.druid.guice.JsonConfigurator;
 import io.druid.guice.ManageLifecycle;
 import io.druid.initialization.Initialization;
+import io.druid.jackson.DefaultObjectMapper;
+import java.io.File;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class CaffeineCacheTest
 {
   private static final byte[] HI = "hiiiiiiiiiiiiiiiiiii".getBytes();
   private static final byte[] HO = "hooooooooooooooooooo".getBytes();
 
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   private CaffeineCache cache;
   private final CaffeineCacheConfig cacheConfig = new CaffeineCacheConfig();
 
@@ -115,6 +147,33 @@ public class CaffeineCacheTest
     Assert.assertEquals(CaffeineCacheProvider.class, cacheProvider.getClass());
   }
 
+  @Test
+  public void testNearCacheInjection()
+  {
+    final String uuid = UUID.randomUUID().toString();
+    System.setProperty(uuid + ".type", "caffeine");
+    System.setProperty(uuid + ".remote", "{\"type\":\"local\"}");
+    final Injector injector = Initialization.makeInjectorWithModules(
+        GuiceInjectors.makeStartupInjector(), ImmutableList.<Module>of(
+            new Module()
+            {
+              @Override
+              public void configure(Binder binder)
+              {
+                binder.bindConstant().annotatedWith(Names.named("serviceName")).to("druid/test/redis");
+                binder.bindConstant().annotatedWith(Names.named("servicePort")).to(0);
+
+                binder.bind(Cache.class).toProvider(CacheProvider.class);
+                JsonConfigProvider.bind(binder, uuid, CacheProvider.class);
+              }
+            }
+        )
+    );
+    final Cache cache = injector.getInstance(Cache.class);
+    Assert.assertEquals(NearCache.class, cache.getClass());
+    Assert.assertFalse(cache.isLocal());
+  }
+
   @Test
   public void testBaseOps() throws Exception
   {
@@ -176,6 +235,206 @@ public class CaffeineCacheTest
     Assert.assertEquals(result.size(), 0);
   }
 
+  @Test
+  public void testValueSizes()
+  {
+    final Random random = new Random(843671346794319L);
+    // Straddle the thread local scratch buffer growth and its cap
+    for (int size : new int[]{0, 1, 4096, 100_000, 3 << 20}) {
+      final byte[] value = new byte[size];
+      for (int i = 0; i < size; ++i) {
+        value[i] = (byte) random.nextInt(8);
+      }
+      final Cache.NamedKey key = new Cache.NamedKey("size", Ints.toByteArray(size));
+      cache.put(key, value);
+      Assert.assertArrayEquals(value, cache.get(key));
+    }
+  }
+
+  @Test
+  public void testAdaptiveCompression()
+  {
+    final Random random = new Random(843671346794319L);
+    final byte[] tiny = new byte[]{0, 0, 0, 0, 0, 0, 0, 0};
+    final byte[] incompressible = new byte[1024];
+    random.nextBytes(incompressible);
+    final byte[] compressible = new byte[1024];
+
+    final Cache.NamedKey tinyKey = new Cache.NamedKey("the", new byte[]{0x01});
+    final Cache.NamedKey incompressibleKey = new Cache.NamedKey("the", new byte[]{0x02});
+    final Cache.NamedKey compressibleKey = new Cache.NamedKey("the", new byte[]{0x03});
+    cache.put(tinyKey, tiny);
+    cache.put(incompressibleKey, incompressible);
+    cache.put(compressibleKey, compressible);
+
+    // Stored raw with only the format byte in front
+    Assert.assertEquals(tiny.length + 1, cache.getCache().getIfPresent(tinyKey).length);
+    Assert.assertEquals(incompressible.length + 1, cache.getCache().getIfPresent(incompressibleKey).length);
+    Assert.assertTrue(cache.getCache().getIfPresent(compressibleKey).length < compressible.length / 10);
+
+    Assert.assertArrayEquals(tiny, cache.get(tinyKey));
+    Assert.assertArrayEquals(incompressible, cache.get(incompressibleKey));
+    Assert.assertArrayEquals(compressible, cache.get(compressibleKey));
+  }
+
+  @Test
+  public void testCompressionStrategies()
+  {
+    final byte[] value = new byte[4096];
+    for (int i = 0; i < value.length; ++i) {
+      value[i] = (byte) (i % 7);
+    }
+    final com.github.benmanes.caffeine.cache.Cache<Cache.NamedKey, byte[]> shared = CaffeineCache
+        .create(cacheConfig, Runnable::run)
+        .getCache();
+    for (final CompressionStrategy strategy : CompressionStrategy.values()) {
+      final CaffeineCache writer = new CaffeineCache(shared, compressionConfig(strategy));
+      final Cache.NamedKey key = new Cache.NamedKey(strategy.name(), HI);
+      writer.put(key, value);
+      final byte format = shared.getIfPresent(key)[0];
+      Assert.assertEquals(strategy == CompressionStrategy.NONE, format == CacheCodec.FORMAT_RAW);
+      Assert.assertArrayEquals(value, writer.get(key));
+    }
+    // Entries written under every codec stay readable whatever the current codec is
+    for (final CompressionStrategy readStrategy : CompressionStrategy.values()) {
+      final CaffeineCache reader = new CaffeineCache(shared, compressionConfig(readStrategy));
+      for (final CompressionStrategy strategy : CompressionStrategy.values()) {
+        Assert.assertArrayEquals(value, reader.get(new Cache.NamedKey(strategy.name(), HI)));
+      }
+    }
+  }
+
+  @Test
+  public void testUndecodableValuesMiss()
+  {
+    final com.github.benmanes.caffeine.cache.Cache<Cache.NamedKey, byte[]> shared = CaffeineCache
+        .create(cacheConfig, Runnable::run)
+        .getCache();
+    final CaffeineCache cache = new CaffeineCache(shared, compressionConfig(CompressionStrategy.ZSTD));
+    final Cache.NamedKey key = new Cache.NamedKey("the", HI);
+
+    // A single segment frame naming dictionary 7, which this cache doesn't have
+    final byte[] frame = {0x28, (byte) 0xB5, 0x2F, (byte) 0xFD, 0x21, 0x07, 0x0A, 0x00};
+    Assert.assertEquals(7L, CacheCodec.ZstdCodec.frameDictId(frame, 0, frame.length));
+    shared.put(key, ByteBuffer.allocate(5 + frame.length).put(CacheCodec.FORMAT_ZSTD).putInt(10).put(frame).array());
+    Assert.assertNull(cache.get(key));
+    Assert.assertNull(shared.getIfPresent(key));
+
+    final byte[] value = new byte[4096];
+    for (int i = 0; i < value.length; ++i) {
+      value[i] = (byte) (i % 7);
+    }
+    cache.put(key, value);
+    final byte[] stored = shared.getIfPresent(key);
+    Assert.assertEquals(0L, CacheCodec.ZstdCodec.frameDictId(stored, 5, stored.length - 5));
+    shared.put(key, Arrays.copyOf(stored, stored.length - 3));
+    Assert.assertEquals(-1, cache.get(key, ByteBuffer.allocate(value.length)));
+    Assert.assertNull(shared.getIfPresent(key));
+  }
+
+  private static CaffeineCacheConfig compressionConfig(final CompressionStrategy strategy)
+  {
+    return new CaffeineCacheConfig()
+    {
+      @Override
+      public CompressionStrategy getCompression()
+      {
+        return strategy;
+      }
+    };
+  }
+
+  @Test
+  public void testByteBufferApi()
+  {
+    final Random random = new Random(843671346794319L);
+    final byte[] raw = new byte[256];
+    random.nextBytes(raw);
+    final byte[] compressible = new byte[4096];
+    final Cache.NamedKey rawKey = new Cache.NamedKey("the", HI);
+    final Cache.NamedKey compressibleKey = new Cache.NamedKey("the", HO);
+    final Cache.NamedKey missingKey = new Cache.NamedKey("missing", HI);
+
+    final ByteBuffer source = ByteBuffer.allocate(raw.length + 10);
+    source.position(10);
+    source.put(raw);
+    source.position(10);
+    cache.put(rawKey, source.slice());
+    cache.put(compressibleKey, ByteBuffer.allocateDirect(compressible.length));
+
+    final ByteBuffer view = cache.getByteBuffer(rawKey);
+    Assert.assertTrue(view.isReadOnly());
+    Assert.assertEquals(ByteBuffer.wrap(raw), view);
+    Assert.assertEquals(ByteBuffer.wrap(compressible), cache.getByteBuffer(compressibleKey));
+    Assert.assertNull(cache.getByteBuffer(missingKey));
+
+    for (ByteBuffer dst : new ByteBuffer[]{ByteBuffer.allocate(5000), ByteBuffer.allocateDirect(5000)}) {
+      dst.position(3);
+      Assert.assertEquals(compressible.length, cache.get(compressibleKey, dst));
+      Assert.assertEquals(3 + compressible.length, dst.position());
+      dst.flip().position(3);
+      Assert.assertEquals(ByteBuffer.wrap(compressible), dst);
+      dst.clear();
+      Assert.assertEquals(raw.length, cache.get(rawKey, dst));
+      dst.flip();
+      Assert.assertEquals(ByteBuffer.wrap(raw), dst);
+    }
+    Assert.assertEquals(-1, cache.get(missingKey, ByteBuffer.allocate(1)));
+    try {
+      cache.get(compressibleKey, ByteBuffer.allocate(100));
+      Assert.fail("Expected BufferOverflowException");
+    }
+    catch (BufferOverflowException e) {
+      // expected
+    }
+    try {
+      cache.get(compressibleKey, ByteBuffer.allocate(compressible.length).asReadOnlyBuffer());
+      Assert.fail("Expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+    // Not the entry's fault, so it stays cached
+    Assert.assertNotNull(cache.getCache().getIfPresent(compressibleKey));
+  }
+
+  @Test
+  public void testParallelGetBulk()
+  {
+    final CaffeineCacheConfig config = new CaffeineCacheConfig()
+    {
+      @Override
+      public int getBulkParallelMinEntries()
+      {
+        return 10;
+      }
+
+      @Override
+      public int getBulkParallelism()
+      {
+        return 2;
+      }
+    };
+    final CaffeineCache cache = CaffeineCache.create(config, Runnable::run);
+    final List<Cache.NamedKey> keys = Lists.newArrayList();
+    for (int i = 0; i < 100; ++i) {
+      final Cache.NamedKey key = new Cache.NamedKey("the", Ints.toByteArray(i));
+      keys.add(key);
+      if (i % 2 == 0) {
+        put(cache, key, i);
+      }
+    }
+    final Map<Cache.NamedKey, byte[]> result = cache.getBulk(keys);
+    Assert.assertEquals(50, result.size());
+    for (int i = 0; i < 100; i += 2) {
+      Assert.assertEquals(i, Ints.fromByteArray(result.get(keys.get(i))));
+    }
+
+    // Its own pool is shut down, late bulk gets deserialize on the calling thread
+    cache.stop();
+    Assert.assertEquals(50, cache.getBulk(keys).size());
+  }
+
   @Test
   public void testSizeEviction() throws InterruptedException
   {
@@ -184,7 +443,7 @@ public class CaffeineCacheTest
       @Override
       public long getSizeInBytes()
       {
-        return 40;
+        return 200;
       }
     };
     final Random random = new Random(843671346794319L);
@@ -211,7 +470,7 @@ public class CaffeineCacheTest
     cache.put(key2, val2);
     Assert.assertNull(cache.get(key1));
     Assert.assertArrayEquals(val2, cache.get(key2));
-    Assert.assertEquals(34, cache.getCache().stats().evictionWeight());
+    Assert.assertEquals(168, cache.getCache().stats().evictionWeight());
   }
 
   @Test
@@ -222,7 +481,7 @@ public class CaffeineCacheTest
       @Override
       public long getSizeInBytes()
       {
-        return 40;
+        return 200;
       }
     };
     final Random random = new Random(843671346794319L);
@@ -242,13 +501,13 @@ public class CaffeineCacheTest
 
     stats = cache.getStats();
     Assert.assertEquals(1L, stats.getNumEntries());
-    Assert.assertEquals(34L, stats.getSizeInBytes());
+    Assert.assertEquals(168L, stats.getSizeInBytes());
 
     cache.put(key2, val2);
 
     stats = cache.getStats();
     Assert.assertEquals(1L, stats.getNumEntries());
-    Assert.assertEquals(34L, stats.getSizeInBytes());
+    Assert.assertEquals(168L, stats.getSizeInBytes());
   }
 
   @Test
@@ -287,13 +546,13 @@ public class CaffeineCacheTest
 
     stats = cache.getStats();
     Assert.assertEquals(1L, stats.getNumEntries());
-    Assert.assertEquals(34L, stats.getSizeInBytes());
+    Assert.assertEquals(168L, stats.getSizeInBytes());
 
     cache.put(key2, val2);
 
     stats = cache.getStats();
     Assert.assertEquals(2L, stats.getNumEntries());
-    Assert.assertEquals(68L, stats.getSizeInBytes());
+    Assert.assertEquals(336L, stats.getSizeInBytes());
 
     cache.close(namespace);
     stats = cache.getStats();
@@ -303,51 +562,55 @@ public class CaffeineCacheTest
 
 
   @Test
-  public void testSizeCalculationMore()
+  public void testCloseOnlyEvictsNamespace()
   {
     final CaffeineCacheConfig config = new CaffeineCacheConfig()
     {
       @Override
       public long getSizeInBytes()
       {
-        return 400;
+        return 999999;
       }
-    };
-    final Random random = new Random(843671346794319L);
-    final byte[] val1 = new byte[14], val2 = new byte[14];
-    final byte[] s1 = new byte[]{0x01}, s2 = new byte[]{0x02};
-    random.nextBytes(val1);
-    random.nextBytes(val2);
-    final Cache.NamedKey key1 = new Cache.NamedKey("the", s1);
-    final Cache.NamedKey key2 = new Cache.NamedKey("the", s2);
-    final Cache cache = CaffeineCache.create(config, Runnable::run);
-
-    CacheStats stats = cache.getStats();
-    Assert.assertEquals(0L, stats.getNumEntries());
-    Assert.assertEquals(0L, stats.getSizeInBytes());
-
-    cache.put(key1, val1);
 
-    stats = cache.getStats();
-    Assert.assertEquals(1L, stats.getNumEntries());
-    Assert.assertEquals(34L, stats.getSizeInBytes());
+      @Override
+      public boolean isEvictOnClose()
+      {
+        return true;
+      }
+    };
+    final CaffeineCache cache = CaffeineCache.create(config, Runnable::run);
+    final NamespaceIndex index = cache.getNamespaceIndex();
+    Assert.assertNotNull(index);
+    for (int i = 0; i < 10; ++i) {
+      put(cache, new Cache.NamedKey("a", Ints.toByteArray(i)), i);
+      put(cache, new Cache.NamedKey("b", Ints.toByteArray(i)), i);
+    }
+    // Replacing a value keeps the key indexed
+    put(cache, new Cache.NamedKey("a", Ints.toByteArray(0)), 100);
+    Assert.assertEquals(2, index.getNamespaceCount());
 
-    cache.put(key2, val2);
+    cache.close("a");
+    Assert.assertEquals(10, cache.getStats().getNumEntries());
+    Assert.assertEquals(1, index.getNamespaceCount());
+    for (int i = 0; i < 10; ++i) {
+      Assert.assertNull(cache.get(new Cache.NamedKey("a", Ints.toByteArray(i))));
+      Assert.assertEquals(i, get(cache, new Cache.NamedKey("b", Ints.toByteArray(i))));
+    }
 
-    stats = cache.getStats();
-    Assert.assertEquals(2L, stats.getNumEntries());
-    Assert.assertEquals(68L, stats.getSizeInBytes());
+    // Entries removed by any other means leave the index too
+    cache.getCache().invalidateAll();
+    Assert.assertEquals(0, index.getNamespaceCount());
   }
 
   @Test
-  public void testSizeCalculationNoWeight()
+  public void testSizeCalculationMore()
   {
     final CaffeineCacheConfig config = new CaffeineCacheConfig()
     {
       @Override
       public long getSizeInBytes()
       {
-        return -1;
+        return 400;
       }
     };
     final Random random = new Random(843671346794319L);
@@ -361,132 +624,1937 @@ public class CaffeineCacheTest
 
     CacheStats stats = cache.getStats();
     Assert.assertEquals(0L, stats.getNumEntries());
-    Assert.assertEquals(-1L, stats.getSizeInBytes());
+    Assert.assertEquals(0L, stats.getSizeInBytes());
 
     cache.put(key1, val1);
 
     stats = cache.getStats();
     Assert.assertEquals(1L, stats.getNumEntries());
-    Assert.assertEquals(-1L, stats.getSizeInBytes());
+    Assert.assertEquals(168L, stats.getSizeInBytes());
 
     cache.put(key2, val2);
 
     stats = cache.getStats();
     Assert.assertEquals(2L, stats.getNumEntries());
-    Assert.assertEquals(-1L, stats.getSizeInBytes());
+    Assert.assertEquals(336L, stats.getSizeInBytes());
   }
 
   @Test
-  public void testFromProperties()
+  public void testNamespacesInterned()
   {
-    final String keyPrefix = "cache.config.prefix";
-    final Properties properties = new Properties();
-    properties.put(keyPrefix + ".expireAfter", "10");
-    properties.put(keyPrefix + ".sizeInBytes", "100");
-    properties.put(keyPrefix + ".cacheExecutorFactory", "single_thread");
-    final Injector injector = Initialization.makeInjectorWithModules(
-        GuiceInjectors.makeStartupInjector(),
-        ImmutableList.<Module>of(
-            binder -> {
-              binder.bindConstant().annotatedWith(Names.named("serviceName")).to("druid/test");
-              binder.bindConstant().annotatedWith(Names.named("servicePort")).to(0);
-              JsonConfigProvider.bind(binder, keyPrefix, CaffeineCacheConfig.class);
-            }
-        )
-    );
-    final JsonConfigurator configurator = injector.getInstance(JsonConfigurator.class);
-    final JsonConfigProvider<CaffeineCacheConfig> caffeineCacheConfigJsonConfigProvider = JsonConfigProvider.of(
-        keyPrefix,
-        CaffeineCacheConfig.class
-    );
-    caffeineCacheConfigJsonConfigProvider.inject(properties, configurator);
-    final CaffeineCacheConfig config = caffeineCacheConfigJsonConfigProvider.get().get();
-    Assert.assertEquals(10, config.getExpireAfter());
-    Assert.assertEquals(100, config.getSizeInBytes());
-    Assert.assertNotNull(config.createExecutor());
+    final CaffeineCache cache = CaffeineCache.create(new CaffeineCacheConfig(), Runnable::run);
+    put(cache, new Cache.NamedKey(new String("the"), Ints.toByteArray(1)), 1);
+    put(cache, new Cache.NamedKey(new String("the"), Ints.toByteArray(2)), 2);
+    final List<Cache.NamedKey> keys = Lists.newArrayList(cache.getCache().asMap().keySet());
+    Assert.assertEquals(2, keys.size());
+    Assert.assertSame(keys.get(0).namespace, keys.get(1).namespace);
   }
 
   @Test
-  public void testMixedCaseFromProperties()
+  public void testGetOrComputeCoalescesMisses() throws Exception
   {
-    final String keyPrefix = "cache.config.prefix";
-    final Properties properties = new Properties();
-    properties.put(keyPrefix + ".expireAfter", "10");
-    properties.put(keyPrefix + ".sizeInBytes", "100");
-    properties.put(keyPrefix + ".cacheExecutorFactory", "CoMmON_FjP");
-    final Injector injector = Initialization.makeInjectorWithModules(
-        GuiceInjectors.makeStartupInjector(),
-        ImmutableList.<Module>of(
-            binder -> {
-              binder.bindConstant().annotatedWith(Names.named("serviceName")).to("druid/test");
-              binder.bindConstant().annotatedWith(Names.named("servicePort")).to(0);
-              JsonConfigProvider.bind(binder, keyPrefix, CaffeineCacheConfig.class);
-            }
-        )
-    );
-    final JsonConfigurator configurator = injector.getInstance(JsonConfigurator.class);
-    final JsonConfigProvider<CaffeineCacheConfig> caffeineCacheConfigJsonConfigProvider = JsonConfigProvider.of(
-        keyPrefix,
-        CaffeineCacheConfig.class
-    );
-    caffeineCacheConfigJsonConfigProvider.inject(properties, configurator);
-    final CaffeineCacheConfig config = caffeineCacheConfigJsonConfigProvider.get().get();
-    Assert.assertEquals(10, config.getExpireAfter());
-    Assert.assertEquals(100, config.getSizeInBytes());
-    Assert.assertNull(config.createExecutor());
+    final CaffeineCache cache = CaffeineCache.create(new CaffeineCacheConfig(), Runnable::run);
+    final Cache.NamedKey key = new Cache.NamedKey("the", HI);
+    final AtomicInteger computations = new AtomicInteger(0);
+    final CountDownLatch computing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final ExecutorService exec = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<byte[]>> results = new ArrayList<>();
+      results.add(
+          exec.submit(
+              () -> cache.getOrCompute(
+                  key,
+                  () -> {
+                    computations.incrementAndGet();
+                    computing.countDown();
+                    Uninterruptibles.awaitUninterruptibly(release);
+                    return Ints.toByteArray(42);
+                  }
+              )
+          )
+      );
+      computing.await();
+      for (int i = 0; i < 3; ++i) {
+        results.add(
+            exec.submit(
+                () -> cache.getOrCompute(
+                    key,
+                    () -> {
+                      computations.incrementAndGet();
+                      return Ints.toByteArray(0);
+                    }
+                )
+            )
+        );
+      }
+      // Let the waiters register before the computation finishes
+      Thread.sleep(100);
+      release.countDown();
+      for (Future<byte[]> result : results) {
+        Assert.assertEquals(42, Ints.fromByteArray(result.get()));
+      }
+    }
+    finally {
+      exec.shutdownNow();
+    }
+    Assert.assertEquals(1, computations.get());
+    Assert.assertEquals(42, get(cache, key));
+    // Hits don't compute
+    Assert.assertEquals(42, Ints.fromByteArray(cache.getOrCompute(key, () -> null)));
   }
 
   @Test
-  public void testDefaultFromProperties()
+  public void testGetOrComputeFailure()
   {
-    final String keyPrefix = "cache.config.prefix";
-    final Properties properties = new Properties();
-    final Injector injector = Initialization.makeInjectorWithModules(
-        GuiceInjectors.makeStartupInjector(),
-        ImmutableList.<Module>of(
-            binder -> {
-              binder.bindConstant().annotatedWith(Names.named("serviceName")).to("druid/test");
-              binder.bindConstant().annotatedWith(Names.named("servicePort")).to(0);
-              JsonConfigProvider.bind(binder, keyPrefix, CaffeineCacheConfig.class);
-            }
-        )
-    );
-    final JsonConfigurator configurator = injector.getInstance(JsonConfigurator.class);
-    final JsonConfigProvider<CaffeineCacheConfig> caffeineCacheConfigJsonConfigProvider = JsonConfigProvider.of(
-        keyPrefix,
-        CaffeineCacheConfig.class
-    );
-    caffeineCacheConfigJsonConfigProvider.inject(properties, configurator);
-    final CaffeineCacheConfig config = caffeineCacheConfigJsonConfigProvider.get().get();
-    Assert.assertEquals(-1, config.getExpireAfter());
-    Assert.assertEquals(-1, config.getSizeInBytes());
-    Assert.assertNull(config.createExecutor());
+    final CaffeineCache cache = CaffeineCache.create(new CaffeineCacheConfig(), Runnable::run);
+    final Cache.NamedKey key = new Cache.NamedKey("the", HI);
+    try {
+      cache.getOrCompute(
+          key,
+          () -> {
+            throw new IllegalStateException("failed");
+          }
+      );
+      Assert.fail();
+    }
+    catch (IllegalStateException e) {
+      Assert.assertEquals("failed", e.getMessage());
+    }
+    // Failures are neither cached nor left in flight
+    Assert.assertNull(cache.getOrCompute(key, () -> null));
+    Assert.assertEquals(1, Ints.fromByteArray(cache.getOrCompute(key, () -> Ints.toByteArray(1))));
   }
 
-  public int get(Cache cache, Cache.NamedKey key)
+  @Test
+  public void testAsyncPut()
   {
-    return Ints.fromByteArray(cache.get(key));
+    final List<Runnable> queued = new ArrayList<>();
+    final CaffeineCache cache = CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public boolean isAsyncPut()
+          {
+            return true;
+          }
+
+          @Override
+          public Executor createAsyncPutExecutor()
+          {
+            return queued::add;
+          }
+
+          @Override
+          public int getAsyncPutMaxPending()
+          {
+            return 2;
+          }
+        },
+        Runnable::run
+    );
+    final Cache.NamedKey key = new Cache.NamedKey("the", HI);
+    cache.put(key, Ints.toByteArray(1));
+    Assert.assertNull(cache.get(key));
+    final ByteBuffer buffer = ByteBuffer.wrap(Ints.toByteArray(2));
+    cache.put(new Cache.NamedKey("the", HO), buffer);
+    // The buffer can be reused right away
+    buffer.putInt(0, 3);
+    // Over the limit
+    cache.put(new Cache.NamedKey("the", Ints.toByteArray(3)), Ints.toByteArray(3));
+    Assert.assertEquals(2, queued.size());
+    Assert.assertEquals(2, cache.getAsyncWriter().getPending());
+    Assert.assertEquals(1, cache.getAsyncWriter().getDropped());
+
+    queued.forEach(Runnable::run);
+    Assert.assertEquals(1, get(cache, key));
+    Assert.assertEquals(2, get(cache, new Cache.NamedKey("the", HO)));
+    Assert.assertEquals(0, cache.getAsyncWriter().getPending());
+    Assert.assertEquals(0, cache.getAsyncWriter().getPendingBytes());
+
+    final CapturingEmitter emitter = new CapturingEmitter();
+    cache.doMonitor(new ServiceEmitter("service", "host", emitter));
+    Assert.assertEquals(1L, emitter.getValue("query/cache/caffeine/total/droppedPuts", null));
   }
 
-  public void put(Cache cache, Cache.NamedKey key, Integer value)
+  @Test
+  public void testAsyncWriterBytesLimit()
   {
-    cache.put(key, Ints.toByteArray(value));
+    final List<Runnable> queued = new ArrayList<>();
+    final AsyncWriter writer = new AsyncWriter(queued::add, 100, 10);
+    writer.submit(6, () -> {});
+    writer.submit(6, () -> {});
+    Assert.assertEquals(1, writer.getDropped());
+    Assert.assertEquals(6, writer.getPendingBytes());
+    queued.forEach(Runnable::run);
+    writer.submit(6, () -> {});
+    Assert.assertEquals(1, writer.getDropped());
   }
-}
 
-class CaffeineCacheProviderWithConfig extends CaffeineCacheProvider
-{
-  private final CaffeineCacheConfig config;
-
-  @Inject
-  public CaffeineCacheProviderWithConfig(CaffeineCacheConfig config)
+  @Test
+  public void testDiskTier() throws Exception
   {
-    this.config = config;
+    final File directory = temporaryFolder.newFolder();
+    final CaffeineCache cache = CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public long getSizeInBytes()
+          {
+            return 200;
+          }
+
+          @Override
+          public boolean isEvictOnClose()
+          {
+            return true;
+          }
+
+          @Override
+          public String getDiskTierPath()
+          {
+            return directory.getPath();
+          }
+
+          @Override
+          public int getDiskTierSegmentSize()
+          {
+            return 4096;
+          }
+        },
+        Runnable::run
+    );
+    final DiskTier diskTier = cache.getDiskTier();
+    final Cache.NamedKey key1 = new Cache.NamedKey("the", Ints.toByteArray(1));
+    final Cache.NamedKey key2 = new Cache.NamedKey("the", Ints.toByteArray(2));
+    put(cache, key1, 1);
+    put(cache, key2, 2);
+    // Evicted for size into the disk tier
+    Assert.assertEquals(1, cache.getStats().getNumEntries());
+    Assert.assertEquals(1, diskTier.getEntries());
+    Assert.assertEquals(1, diskTier.getSegments());
+
+    // Promoted back, which evicts the other key to disk
+    Assert.assertEquals(1, get(cache, key1));
+    Assert.assertEquals(1, diskTier.getHits());
+    Assert.assertEquals(1, diskTier.getEntries());
+    Assert.assertEquals(2, cache.getBulk(Lists.newArrayList(key1, key2)).size());
+    Assert.assertEquals(2, diskTier.getHits());
+
+    // A put replaces the value on disk
+    put(cache, key1, 10);
+    put(cache, key2, 20);
+    Assert.assertEquals(10, get(cache, key1));
+    Assert.assertEquals(20, get(cache, key2));
+
+    final CapturingEmitter emitter = new CapturingEmitter();
+    cache.doMonitor(new ServiceEmitter("service", "host", emitter));
+    Assert.assertEquals(1, emitter.getValue("query/cache/caffeine/diskTier/entries", null).intValue());
+
+    cache.close("the");
+    Assert.assertEquals(0, diskTier.getEntries());
+    Assert.assertNull(cache.get(key1));
+    Assert.assertNull(cache.get(key2));
+
+    cache.stop();
+    Assert.assertEquals(0, directory.list().length);
   }
 
-  @Override
-  public Cache get()
+  @Test
+  public void testDiskTierReclaim() throws Exception
+  {
+    // Room for two 67 byte records per segment and two segments
+    final DiskTier diskTier = new DiskTier(temporaryFolder.newFolder(), 288, 144);
+    for (int i = 0; i < 5; ++i) {
+      diskTier.add(new Cache.NamedKey("the", Ints.toByteArray(i)), new byte[40], Long.MAX_VALUE);
+    }
+    // The first segment was all live, so it was dropped
+    Assert.assertEquals(2, diskTier.getSegments());
+    Assert.assertNull(diskTier.take(new Cache.NamedKey("the", Ints.toByteArray(0))));
+    Assert.assertNull(diskTier.take(new Cache.NamedKey("the", Ints.toByteArray(1))));
+
+    Assert.assertNotNull(diskTier.take(new Cache.NamedKey("the", Ints.toByteArray(2))));
+    diskTier.add(new Cache.NamedKey("the", Ints.toByteArray(5)), new byte[40], Long.MAX_VALUE);
+    final byte[] value = new byte[40];
+    value[0] = 6;
+    diskTier.add(new Cache.NamedKey("the", Ints.toByteArray(6)), value, Long.MAX_VALUE);
+    // The half live segment was compacted instead
+    Assert.assertEquals(2, diskTier.getSegments());
+    Assert.assertEquals(4, diskTier.getEntries());
+    Assert.assertEquals(4 * 67, diskTier.getLiveBytes());
+    Assert.assertArrayEquals(
+        new byte[40],
+        diskTier.take(new Cache.NamedKey("the", Ints.toByteArray(3))).getValue()
+    );
+    Assert.assertArrayEquals(value, diskTier.take(new Cache.NamedKey("the", Ints.toByteArray(6))).getValue());
+    diskTier.close();
+  }
+
+  @Test
+  public void testDiskTierExpiration() throws Exception
+  {
+    final DiskTier diskTier = new DiskTier(temporaryFolder.newFolder(), 1 << 20, 4096);
+    final Cache.NamedKey expired = new Cache.NamedKey("the", Ints.toByteArray(0));
+    final Cache.NamedKey live = new Cache.NamedKey("the", Ints.toByteArray(1));
+    final long expiresAt = System.currentTimeMillis() + 60_000;
+    diskTier.add(expired, new byte[10], System.currentTimeMillis() - 1);
+    diskTier.add(live, new byte[10], expiresAt);
+    Assert.assertNull(diskTier.take(expired));
+    Assert.assertEquals(expiresAt, diskTier.take(live).getExpiresAt());
+    Assert.assertEquals(1, diskTier.getHits());
+    Assert.assertEquals(0, diskTier.getLiveBytes());
+
+    // Closing a namespace only touches its own keys
+    diskTier.add(new Cache.NamedKey("a", Ints.toByteArray(0)), new byte[10], expiresAt);
+    diskTier.add(new Cache.NamedKey("b", Ints.toByteArray(0)), new byte[10], expiresAt);
+    diskTier.removeNamespace("a");
+    Assert.assertEquals(1, diskTier.getEntries());
+    Assert.assertNotNull(diskTier.take(new Cache.NamedKey("b", Ints.toByteArray(0))));
+    diskTier.close();
+
+    // Promoted entries expiring after write keep their remaining lifetime
+    final File directory = temporaryFolder.newFolder();
+    final CaffeineCache cache = CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public long getSizeInBytes()
+          {
+            return 200;
+          }
+
+          @Override
+          public List<CacheExpireRule> getExpireRules()
+          {
+            return ImmutableList.of(new CacheExpireRule("realtime_", null, null, 60_000L));
+          }
+
+          @Override
+          public String getDiskTierPath()
+          {
+            return directory.getPath();
+          }
+
+          @Override
+          public int getDiskTierSegmentSize()
+          {
+            return 4096;
+          }
+        },
+        Runnable::run
+    );
+    final Cache.NamedKey key1 = new Cache.NamedKey("realtime_the", Ints.toByteArray(1));
+    final Cache.NamedKey key2 = new Cache.NamedKey("realtime_the", Ints.toByteArray(2));
+    put(cache, key1, 1);
+    Thread.sleep(100);
+    put(cache, key2, 2);
+    Assert.assertEquals(1, cache.getDiskTier().getEntries());
+    final Cache.NamedKey evicted = cache.getCache().asMap().containsKey(key1) ? key2 : key1;
+    Assert.assertNotNull(cache.get(evicted));
+    Assert.assertEquals(1, cache.getDiskTier().getHits());
+    final long expiresAfter = cache.getCache()
+                                   .policy()
+                                   .expireVariably()
+                                   .get()
+                                   .getExpiresAfter(evicted, TimeUnit.MILLISECONDS)
+                                   .getAsLong();
+    Assert.assertTrue(expiresAfter > 0 && expiresAfter <= 60_000);
+    if (evicted.equals(key1)) {
+      Assert.assertTrue(expiresAfter <= 60_000 - 100);
+    }
+    cache.stop();
+  }
+
+  @Test
+  public void testNearCache() throws Exception
+  {
+    final MapRemoteCache remote = new MapRemoteCache();
+    final NearCache near = new NearCache(
+        CaffeineCache.create(new CaffeineCacheConfig(), Runnable::run),
+        remote,
+        2,
+        1000,
+        10
+    );
+    final Cache.NamedKey key1 = new Cache.NamedKey("the", Ints.toByteArray(1));
+    final Cache.NamedKey key2 = new Cache.NamedKey("the", Ints.toByteArray(2));
+    final Cache.NamedKey key3 = new Cache.NamedKey("the", Ints.toByteArray(3));
+
+    // Remote hits populate the local cache
+    remote.put(key1, Ints.toByteArray(1));
+    Assert.assertEquals(1, get(near, key1));
+    Assert.assertEquals(1, get(near, key1));
+    Assert.assertEquals(1, remote.requestedKeys.size());
+
+    // Puts are written behind
+    put(near, key2, 2);
+    Assert.assertEquals(1, near.getPendingWrites());
+    Assert.assertFalse(remote.values.containsKey(key2));
+    near.flush();
+    Assert.assertEquals(2, Ints.fromByteArray(remote.values.get(key2)));
+
+    // Only local misses go to the remote cache
+    remote.put(key3, Ints.toByteArray(3));
+    remote.requestedKeys.clear();
+    final Map<Cache.NamedKey, byte[]> bulk = near.getBulk(Lists.newArrayList(key1, key2, key3));
+    Assert.assertEquals(3, bulk.size());
+    Assert.assertEquals(3, Ints.fromByteArray(bulk.get(key3)));
+    Assert.assertEquals(ImmutableList.of(key3), remote.requestedKeys);
+
+    // Beyond the queue, writes stay local
+    for (int i = 10; i < 13; ++i) {
+      put(near, new Cache.NamedKey("the", Ints.toByteArray(i)), i);
+    }
+    final CapturingEmitter emitter = new CapturingEmitter();
+    near.doMonitor(new ServiceEmitter("service", "host", emitter));
+    Assert.assertEquals(1L, emitter.getValue("query/cache/caffeine/total/droppedRemoteWrites", null));
+    Assert.assertEquals(2L, emitter.getValue("query/cache/caffeine/total/remoteHits", null));
+
+    // The background writer drains the queue
+    near.start();
+    try {
+      final Cache.NamedKey key4 = new Cache.NamedKey("the", Ints.toByteArray(4));
+      put(near, key4, 4);
+      final long deadline = System.currentTimeMillis() + 10_000;
+      while (!remote.values.containsKey(key4) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertTrue(remote.values.containsKey(key4));
+    }
+    finally {
+      near.stop();
+    }
+    Assert.assertEquals(0, near.getPendingWrites());
+    Assert.assertEquals(0, near.getPendingWriteBytes());
+  }
+
+  @Test
+  public void testNearCacheStopFinishesBatch() throws Exception
+  {
+    final AtomicInteger writing = new AtomicInteger();
+    final MapRemoteCache remote = new MapRemoteCache()
+    {
+      @Override
+      public void put(NamedKey key, byte[] value)
+      {
+        writing.incrementAndGet();
+        Uninterruptibles.sleepUninterruptibly(20, TimeUnit.MILLISECONDS);
+        super.put(key, value);
+      }
+    };
+    final NearCache near = new NearCache(
+        CaffeineCache.create(new CaffeineCacheConfig(), Runnable::run),
+        remote,
+        100,
+        100_000,
+        10
+    );
+    near.start();
+    for (int i = 0; i < 20; ++i) {
+      put(near, new Cache.NamedKey("the", Ints.toByteArray(i)), i);
+    }
+    final long deadline = System.currentTimeMillis() + 10_000;
+    while (writing.get() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    // Stopped while the write behind is in the middle of a batch
+    near.stop();
+    Assert.assertEquals(20, remote.values.size());
+    Assert.assertEquals(0, near.getPendingWrites());
+    Assert.assertEquals(0, near.getPendingWriteBytes());
+  }
+
+  @Test
+  public void testNearCacheQueueBytes()
+  {
+    final MapRemoteCache remote = new MapRemoteCache();
+    final NearCache near = new NearCache(
+        CaffeineCache.create(new CaffeineCacheConfig(), Runnable::run),
+        remote,
+        100,
+        250,
+        10
+    );
+    // Room for two puts of a 4 byte key and a 100 byte value
+    for (int i = 0; i < 3; ++i) {
+      near.put(new Cache.NamedKey("the", Ints.toByteArray(i)), new byte[100]);
+    }
+    Assert.assertEquals(2, near.getPendingWrites());
+    Assert.assertEquals(208, near.getPendingWriteBytes());
+    Assert.assertNotNull(near.get(new Cache.NamedKey("the", Ints.toByteArray(2))));
+
+    near.flush();
+    Assert.assertEquals(2, remote.values.size());
+    Assert.assertEquals(0, near.getPendingWriteBytes());
+  }
+
+  @Test
+  public void testDedup()
+  {
+    final CaffeineCache cache = CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public long getSizeInBytes()
+          {
+            return 1_000_000;
+          }
+
+          @Override
+          public boolean isDedup()
+          {
+            return true;
+          }
+        },
+        Runnable::run
+    );
+    final byte[] value = new byte[10_000];
+    new Random(843671346794319L).nextBytes(value);
+    final Cache.NamedKey key1 = new Cache.NamedKey("the", HI);
+    final Cache.NamedKey key2 = new Cache.NamedKey("the", HO);
+    final Cache.NamedKey key3 = new Cache.NamedKey("other", HI);
+    cache.put(key1, value);
+    final long chargedWeight = cache.getCache().policy().eviction().get().weightedSize().getAsLong();
+    cache.put(key2, value);
+    cache.put(key3, value.clone());
+    final byte[] stored = cache.getCache().getIfPresent(key1);
+    Assert.assertSame(stored, cache.getCache().getIfPresent(key2));
+    Assert.assertSame(stored, cache.getCache().getIfPresent(key3));
+    Assert.assertEquals(1, cache.getDedup().getValues());
+    Assert.assertEquals(2L * stored.length, cache.getDedup().getSharedBytes());
+    // The other two keys are only charged for themselves
+    final long weight = cache.getCache().policy().eviction().get().weightedSize().getAsLong();
+    Assert.assertTrue(weight - chargedWeight < 1_000);
+
+    // Another key holding the value takes over the charge
+    cache.getCache().invalidate(key1);
+    Assert.assertArrayEquals(value, cache.get(key2));
+    Assert.assertTrue(cache.getCache().policy().eviction().get().weightedSize().getAsLong() > value.length);
+    cache.put(key1, value);
+    Assert.assertEquals(weight, cache.getCache().policy().eviction().get().weightedSize().getAsLong());
+
+    // Putting the same value again doesn't take another reference
+    cache.put(key2, value);
+    Assert.assertEquals(2L * stored.length, cache.getDedup().getSharedBytes());
+    Assert.assertEquals(weight, cache.getCache().policy().eviction().get().weightedSize().getAsLong());
+
+    final byte[] other = new byte[100];
+    cache.put(key3, other);
+    Assert.assertArrayEquals(other, cache.get(key3));
+    Assert.assertEquals(2, cache.getDedup().getValues());
+    Assert.assertEquals((long) stored.length, cache.getDedup().getSharedBytes());
+
+    final CapturingEmitter emitter = new CapturingEmitter();
+    cache.doMonitor(new ServiceEmitter("service", "host", emitter));
+    Assert.assertEquals(2, emitter.getValue("query/cache/caffeine/dedup/values", null).intValue());
+
+    cache.getCache().invalidateAll();
+    Assert.assertEquals(0, cache.getDedup().getValues());
+    Assert.assertEquals(0L, cache.getDedup().getSharedBytes());
+  }
+
+  @Test
+  public void testDedupOffHeap()
+  {
+    final CaffeineCache cache = CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public boolean isOffHeap()
+          {
+            return true;
+          }
+
+          @Override
+          public boolean isDedup()
+          {
+            return true;
+          }
+        },
+        Runnable::run
+    );
+    final Cache.NamedKey key1 = new Cache.NamedKey("the", HI);
+    final Cache.NamedKey key2 = new Cache.NamedKey("the", HO);
+    put(cache, key1, 1);
+    put(cache, key2, 1);
+    final long usedBytes = cache.getOffHeapStore().getUsedBytes();
+
+    // The payload stays until the last key holding it is gone
+    cache.getCache().invalidate(key1);
+    Assert.assertEquals(1, get(cache, key2));
+    Assert.assertEquals(usedBytes, cache.getOffHeapStore().getUsedBytes());
+    cache.getCache().invalidate(key2);
+    Assert.assertEquals(0L, cache.getOffHeapStore().getUsedBytes());
+  }
+
+  @Test
+  public void testExpireRules()
+  {
+    final CaffeineCache cache = CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public List<CacheExpireRule> getExpireRules()
+          {
+            return ImmutableList.of(new CacheExpireRule("realtime_", null, null, 1L));
+          }
+        },
+        Runnable::run
+    );
+    final Cache.NamedKey realtime = new Cache.NamedKey("realtime_wikipedia", HI);
+    final Cache.NamedKey historical = new Cache.NamedKey("wikipedia", HI);
+    put(cache, realtime, 1);
+    put(cache, historical, 2);
+    Uninterruptibles.sleepUninterruptibly(50, TimeUnit.MILLISECONDS);
+    Assert.assertNull(cache.get(realtime));
+    Assert.assertEquals(2, get(cache, historical));
+  }
+
+  @Test
+  public void testNamespaceExpiry()
+  {
+    final NamespaceExpiry expiry = new NamespaceExpiry(
+        ImmutableList.of(
+            new CacheExpireRule("realtime_", null, null, 1_000L),
+            new CacheExpireRule(null, ".*_hourly", 2_000L, null)
+        ),
+        5_000
+    );
+    final Cache.NamedKey realtime = new Cache.NamedKey("realtime_hourly", HI);
+    final Cache.NamedKey hourly = new Cache.NamedKey("wikipedia_hourly", HI);
+    final Cache.NamedKey other = new Cache.NamedKey("wikipedia_hourly_old", HI);
+    final byte[] value = new byte[1];
+
+    // The first matching rule wins
+    Assert.assertEquals(TimeUnit.SECONDS.toNanos(1), expiry.expireAfterCreate(realtime, value, 0));
+    Assert.assertEquals(TimeUnit.SECONDS.toNanos(1), expiry.expireAfterUpdate(realtime, value, 0, 10));
+    Assert.assertEquals(10, expiry.expireAfterRead(realtime, value, 0, 10));
+    Assert.assertEquals(TimeUnit.SECONDS.toNanos(2), expiry.expireAfterCreate(hourly, value, 0));
+    Assert.assertEquals(TimeUnit.SECONDS.toNanos(2), expiry.expireAfterRead(hourly, value, 0, 10));
+    // Patterns match the whole namespace
+    Assert.assertEquals(TimeUnit.SECONDS.toNanos(5), expiry.expireAfterRead(other, value, 0, 10));
+    Assert.assertEquals(
+        Long.MAX_VALUE,
+        new NamespaceExpiry(ImmutableList.of(), -1).expireAfterCreate(other, value, 0)
+    );
+  }
+
+  @Test
+  public void testNamespaceExpiryMatchesEqualNamespacesOnce()
+  {
+    final AtomicInteger matched = new AtomicInteger();
+    final NamespaceExpiry expiry = new NamespaceExpiry(
+        ImmutableList.of(
+            new CacheExpireRule(null, ".*_hourly", 2_000L, null)
+            {
+              @Override
+              boolean matches(String namespace)
+              {
+                matched.incrementAndGet();
+                return super.matches(namespace);
+              }
+            }
+        ),
+        5_000
+    );
+    final byte[] value = new byte[1];
+    // Reads pass the caller's key, whose namespace is an equal but distinct instance
+    expiry.expireAfterCreate(new Cache.NamedKey(new String("wikipedia_hourly"), HI), value, 0);
+    expiry.expireAfterRead(new Cache.NamedKey(new String("wikipedia_hourly"), HI), value, 0, 10);
+    Assert.assertEquals(1, matched.get());
+  }
+
+  @Test
+  public void testExpireRulesFromJson() throws Exception
+  {
+    final CaffeineCacheConfig config = new DefaultObjectMapper().readValue(
+        "{\"expireRules\":[{\"prefix\":\"realtime_\",\"expireAfterWrite\":60000},"
+        + "{\"pattern\":\".*_hourly\",\"expireAfterAccess\":600000}]}",
+        CaffeineCacheConfig.class
+    );
+    Assert.assertEquals(2, config.getExpireRules().size());
+    Assert.assertEquals("realtime_", config.getExpireRules().get(0).getPrefix());
+    Assert.assertEquals(60_000L, config.getExpireRules().get(0).getExpireAfterWrite());
+    Assert.assertEquals(-1L, config.getExpireRules().get(0).getExpireAfterAccess());
+    Assert.assertEquals(".*_hourly", config.getExpireRules().get(1).getPattern());
+    Assert.assertEquals(600_000L, config.getExpireRules().get(1).getExpireAfterAccess());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testExpireRuleNeedsOneMatch()
+  {
+    new CacheExpireRule("realtime_", ".*_hourly", 1_000L, null);
+  }
+
+  @Test
+  public void testSizeCalculationNoWeight()
+  {
+    final CaffeineCacheConfig config = new CaffeineCacheConfig()
+    {
+      @Override
+      public long getSizeInBytes()
+      {
+        return -1;
+      }
+    };
+    final Random random = new Random(843671346794319L);
+    final byte[] val1 = new byte[14], val2 = new byte[14];
+    final byte[] s1 = new byte[]{0x01}, s2 = new byte[]{0x02};
+    random.nextBytes(val1);
+    random.nextBytes(val2);
+    final Cache.NamedKey key1 = new Cache.NamedKey("the", s1);
+    final Cache.NamedKey key2 = new Cache.NamedKey("the", s2);
+    final Cache cache = CaffeineCache.create(config, Runnable::run);
+
+    CacheStats stats = cache.getStats();
+    Assert.assertEquals(0L, stats.getNumEntries());
+    Assert.assertEquals(-1L, stats.getSizeInBytes());
+
+    cache.put(key1, val1);
+
+    stats = cache.getStats();
+    Assert.assertEquals(1L, stats.getNumEntries());
+    Assert.assertEquals(-1L, stats.getSizeInBytes());
+
+    cache.put(key2, val2);
+
+    stats = cache.getStats();
+    Assert.assertEquals(2L, stats.getNumEntries());
+    Assert.assertEquals(-1L, stats.getSizeInBytes());
+  }
+
+  @Test
+  public void testOffHeapSizeEviction()
+  {
+    final CaffeineCacheConfig config = new CaffeineCacheConfig()
+    {
+      @Override
+      public long getSizeInBytes()
+      {
+        return 250;
+      }
+
+      @Override
+      public boolean isOffHeap()
+      {
+        return true;
+      }
+    };
+    final Random random = new Random(843671346794319L);
+    final byte[] val1 = new byte[14], val2 = new byte[14];
+    final byte[] s1 = new byte[]{0x01}, s2 = new byte[]{0x02};
+    random.nextBytes(val1);
+    random.nextBytes(val2);
+    final Cache.NamedKey key1 = new Cache.NamedKey("the", s1);
+    final Cache.NamedKey key2 = new Cache.NamedKey("the", s2);
+    final CaffeineCache cache = CaffeineCache.create(config, Runnable::run);
+    final OffHeapStore store = cache.getOffHeapStore();
+    Assert.assertNotNull(store);
+
+    cache.put(key1, val1);
+    Assert.assertArrayEquals(val1, cache.get(key1));
+    // Charged for the smallest chunk
+    Assert.assertEquals(232L, cache.getStats().getSizeInBytes());
+    Assert.assertEquals(15L, store.getUsedBytes());
+
+    cache.put(key2, val2);
+    Assert.assertNull(cache.get(key1));
+    Assert.assertArrayEquals(val2, cache.get(key2));
+    Assert.assertEquals(232, cache.getCache().stats().evictionWeight());
+    Assert.assertEquals(15L, store.getUsedBytes());
+
+    cache.getCache().invalidateAll();
+    Assert.assertEquals(0L, store.getUsedBytes());
+  }
+
+  @Test
+  public void testOffHeapIgnoresStaleReleases()
+  {
+    final OffHeapStore store = new OffHeapStore(1024);
+    // Larger than a slab, so it gets a slab of its own which its release frees
+    final byte[] large = store.store(new byte[2000]);
+    store.release(large);
+    store.release(large);
+    Assert.assertEquals(0L, store.getAllocatedBytes());
+
+    // Takes over the id of the freed slab
+    final byte[] small = store.store(new byte[100]);
+    store.release(small);
+    store.release(small);
+    Assert.assertEquals(0L, store.getUsedBytes());
+    final byte[] other = store.store(new byte[2000]);
+    store.release(large);
+    Assert.assertArrayEquals(new byte[2000], store.load(other));
+
+    store.release(ByteBuffer.allocate(16).putInt(1000).putInt(0).putInt(100).putInt(1).array());
+    Assert.assertEquals(2000L, store.getUsedBytes());
+  }
+
+  @Test
+  public void testOffHeapFreesEmptySlabs()
+  {
+    final OffHeapStore store = new OffHeapStore(1024);
+    final List<byte[]> handles = new ArrayList<>();
+    for (int i = 0; i < 18; ++i) {
+      handles.add(store.store(new byte[100]));
+    }
+    Assert.assertEquals(2048L, store.getAllocatedBytes());
+    Assert.assertEquals(104, store.allocatedLength(handles.get(0)));
+
+    // The last slab of the chunk size is kept
+    for (byte[] handle : handles) {
+      store.release(handle);
+    }
+    Assert.assertEquals(1024L, store.getAllocatedBytes());
+    Assert.assertEquals(0L, store.getUsedBytes());
+    Assert.assertNull(store.load(handles.get(0)));
+
+    final byte[] other = new byte[500];
+    other[0] = 1;
+    final byte[] handle = store.store(other);
+    Assert.assertEquals(2048L, store.getAllocatedBytes());
+    Assert.assertArrayEquals(other, store.load(handle));
+    final byte[] reused = store.store(new byte[100]);
+    Assert.assertEquals(2048L, store.getAllocatedBytes());
+    Assert.assertEquals(100, store.load(reused).length);
+  }
+
+  @Test
+  public void testOffHeapLargeValues()
+  {
+    final CaffeineCacheConfig config = new CaffeineCacheConfig()
+    {
+      @Override
+      public boolean isOffHeap()
+      {
+        return true;
+      }
+
+      @Override
+      public int getOffHeapSlabSize()
+      {
+        return 1024;
+      }
+    };
+    final Random random = new Random(843671346794319L);
+    final byte[] small = new byte[100], large = new byte[4096];
+    random.nextBytes(small);
+    random.nextBytes(large);
+    final Cache.NamedKey smallKey = new Cache.NamedKey("the", HI);
+    final Cache.NamedKey largeKey = new Cache.NamedKey("the", HO);
+    final CaffeineCache cache = CaffeineCache.create(config, Runnable::run);
+
+    cache.put(smallKey, small);
+    cache.put(largeKey, large);
+    Assert.assertArrayEquals(small, cache.get(smallKey));
+    Assert.assertArrayEquals(large, cache.get(largeKey));
+
+    final byte[] staleHandle = cache.getCache().getIfPresent(largeKey);
+    cache.put(largeKey, small);
+    Assert.assertArrayEquals(small, cache.get(largeKey));
+    Assert.assertNull(cache.getOffHeapStore().load(staleHandle));
+    Assert.assertEquals(1024L, cache.getOffHeapStore().getAllocatedBytes());
+  }
+
+  @Test
+  public void testSnapshot() throws Exception
+  {
+    final File snapshot = new File(temporaryFolder.getRoot(), "cache.snapshot");
+    final CaffeineCacheConfig config = snapshotConfig(snapshot, 3);
+    final CaffeineCache cache = CaffeineCache.create(config, Runnable::run);
+    for (int i = 0; i < 5; ++i) {
+      put(cache, new Cache.NamedKey("the", Ints.toByteArray(i)), i);
+    }
+    cache.writeSnapshot();
+
+    final Cache.NamedKey hottest = Iterables.getOnlyElement(
+        cache.getCache().policy().eviction().get().hottest(1).keySet()
+    );
+
+    final CaffeineCache restored = CaffeineCache.create(config, Runnable::run);
+    put(restored, hottest, 100);
+    Assert.assertEquals(3, restored.loadSnapshot());
+    Assert.assertEquals(3, restored.getStats().getNumEntries());
+    for (Map.Entry<Cache.NamedKey, byte[]> entry : restored.getCache().asMap().entrySet()) {
+      final int i = Ints.fromByteArray(entry.getKey().key);
+      // Entries put since startup win over the snapshot
+      Assert.assertEquals(entry.getKey().equals(hottest) ? 100 : i, get(restored, entry.getKey()));
+    }
+
+    // Snapshots load into an off heap cache too
+    final CaffeineCache offHeap = CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public String getSnapshotPath()
+          {
+            return snapshot.getPath();
+          }
+
+          @Override
+          public boolean isOffHeap()
+          {
+            return true;
+          }
+        },
+        Runnable::run
+    );
+    Assert.assertEquals(3, offHeap.loadSnapshot());
+    Assert.assertEquals(3, offHeap.getStats().getNumEntries());
+  }
+
+  @Test
+  public void testAccessTrace() throws Exception
+  {
+    final File trace = new File(temporaryFolder.getRoot(), "cache.trace");
+    final CaffeineCache cache = CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public String getTracePath()
+          {
+            return trace.getPath();
+          }
+
+          @Override
+          public double getTraceSampleRate()
+          {
+            return 1.0;
+          }
+        },
+        Runnable::run
+    );
+    cache.start();
+    final Cache.NamedKey key1 = new Cache.NamedKey("the", Ints.toByteArray(1));
+    final Cache.NamedKey key2 = new Cache.NamedKey("the", Ints.toByteArray(2));
+    Assert.assertNull(cache.get(key1));
+    put(cache, key1, 1);
+    Assert.assertEquals(1, get(cache, key1));
+    cache.getBulk(Lists.newArrayList(key1, key2));
+    cache.stop();
+    Assert.assertEquals(16 + 5 * AccessTrace.RECORD_SIZE, trace.length());
+
+    final List<TraceSimulator.Simulation> simulations = TraceSimulator.simulate(
+        trace.getPath(),
+        new long[]{0, 1000},
+        new long[]{-1}
+    );
+    Assert.assertEquals(4, simulations.size());
+    for (TraceSimulator.Simulation simulation : simulations) {
+      // Nothing fits in an empty cache, otherwise both gets after the put hit
+      final double expected = simulation.getSizeInBytes() == 0 ? 0 : 0.5;
+      Assert.assertEquals(simulation.toString(), expected, simulation.getHitRatio(), 0);
+    }
+  }
+
+  @Test
+  public void testAccessTraceSampling() throws Exception
+  {
+    final AccessTrace trace = new AccessTrace(new File(temporaryFolder.getRoot(), "cache.trace"), 0.1, 1 << 20);
+    int sampled = 0;
+    for (int i = 0; i < 10_000; ++i) {
+      final Cache.NamedKey key = new Cache.NamedKey("the", Ints.toByteArray(i));
+      if (trace.isSampled(key)) {
+        ++sampled;
+      }
+    }
+    trace.close();
+    Assert.assertTrue(sampled > 800 && sampled < 1200);
+  }
+
+  @Test
+  public void testAccessTraceConcurrentWrites() throws Exception
+  {
+    final File file = new File(temporaryFolder.getRoot(), "cache.trace");
+    final AccessTrace trace = new AccessTrace(file, 1.0, 16 + 3_000 * AccessTrace.RECORD_SIZE);
+    final ExecutorService exec = Executors.newFixedThreadPool(4);
+    final List<Future<?>> futures = new ArrayList<>();
+    for (int thread = 0; thread < 4; ++thread) {
+      futures.add(exec.submit(() -> {
+        for (int i = 0; i < 1_000; ++i) {
+          trace.write(AccessTrace.OP_HIT, i, 1);
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    exec.shutdown();
+    trace.close();
+    // Writes beyond the maximum are dropped, and every queued one is written out by close
+    Assert.assertEquals(16 + 3_000 * AccessTrace.RECORD_SIZE, file.length());
+  }
+
+  @Test
+  public void testSnapshotMaxBytes() throws Exception
+  {
+    final File snapshot = new File(temporaryFolder.getRoot(), "cache.snapshot");
+    final CaffeineCacheConfig config = new CaffeineCacheConfig()
+    {
+      @Override
+      public long getSizeInBytes()
+      {
+        return 999999;
+      }
+
+      @Override
+      public String getSnapshotPath()
+      {
+        return snapshot.getPath();
+      }
+
+      @Override
+      public long getSnapshotMaxBytes()
+      {
+        // Two entries of a 4 byte key and a 5 byte stored value
+        return 18;
+      }
+    };
+    final CaffeineCache cache = CaffeineCache.create(config, Runnable::run);
+    for (int i = 0; i < 5; ++i) {
+      put(cache, new Cache.NamedKey("the", Ints.toByteArray(i)), i);
+    }
+    cache.writeSnapshot();
+
+    final CaffeineCache restored = CaffeineCache.create(config, Runnable::run);
+    Assert.assertEquals(2, restored.loadSnapshot());
+  }
+
+  @Test
+  public void testCorruptSnapshotIgnored() throws Exception
+  {
+    final File snapshot = new File(temporaryFolder.getRoot(), "cache.snapshot");
+    final CaffeineCacheConfig config = snapshotConfig(snapshot, 100);
+    final CaffeineCache cache = CaffeineCache.create(config, Runnable::run);
+    Assert.assertEquals(-1, cache.loadSnapshot());
+    for (int i = 0; i < 5; ++i) {
+      put(cache, new Cache.NamedKey("the", Ints.toByteArray(i)), i);
+    }
+    cache.writeSnapshot();
+
+    final byte[] bytes = Files.readAllBytes(snapshot.toPath());
+    bytes[bytes.length / 2] ^= 0x10;
+    Files.write(snapshot.toPath(), bytes);
+    final CaffeineCache restored = CaffeineCache.create(config, Runnable::run);
+    Assert.assertEquals(-1, restored.loadSnapshot());
+    Assert.assertEquals(0, restored.getStats().getNumEntries());
+  }
+
+  @Test
+  public void testStopKeepsSnapshotOfUnfinishedLoad() throws Exception
+  {
+    final File snapshot = new File(temporaryFolder.getRoot(), "cache.snapshot");
+    final CaffeineCacheConfig config = snapshotConfig(snapshot, 10_000);
+    final CaffeineCache cache = CaffeineCache.create(config, Runnable::run);
+    for (int i = 0; i < 10_000; ++i) {
+      put(cache, new Cache.NamedKey("the", Ints.toByteArray(i)), i);
+    }
+    cache.writeSnapshot();
+    final int written = CaffeineCache.create(config, Runnable::run).loadSnapshot();
+    Assert.assertTrue(written > 0);
+
+    // Stopped right away, so the load is most likely interrupted. Either it finished and wrote everything back, or
+    // the snapshot is left as it was
+    final CaffeineCache interrupted = CaffeineCache.create(config, Runnable::run);
+    interrupted.start();
+    interrupted.stop();
+
+    final CaffeineCache restored = CaffeineCache.create(config, Runnable::run);
+    Assert.assertEquals(written, restored.loadSnapshot());
+  }
+
+  private static CaffeineCacheConfig snapshotConfig(final File snapshot, final int maxEntries)
+  {
+    return new CaffeineCacheConfig()
+    {
+      @Override
+      public long getSizeInBytes()
+      {
+        return 999999;
+      }
+
+      @Override
+      public String getSnapshotPath()
+      {
+        return snapshot.getPath();
+      }
+
+      @Override
+      public int getSnapshotMaxEntries()
+      {
+        return maxEntries;
+      }
+    };
+  }
+
+  @Test
+  public void testPartitions()
+  {
+    final CaffeineCacheConfig config = new CaffeineCacheConfig()
+    {
+      @Override
+      public long getSizeInBytes()
+      {
+        return 100_000;
+      }
+
+      @Override
+      public Map<String, Long> getPartitions()
+      {
+        return ImmutableMap.of("big_", 10_000L, "big_small_", 1_000L);
+      }
+    };
+    final CaffeineCache cache = CaffeineCache.create(config, Runnable::run);
+    Assert.assertEquals(3, cache.getPartitions().size());
+    Assert.assertEquals("big_small_", cache.getPartitions().get(0).getName());
+    Assert.assertEquals(CachePartition.DEFAULT_NAME, cache.getPartitions().get(2).getName());
+
+    for (int i = 0; i < 10; ++i) {
+      put(cache, new Cache.NamedKey("other", Ints.toByteArray(i)), i);
+    }
+    // Way more than the big_ partition can hold
+    for (int i = 0; i < 1000; ++i) {
+      put(cache, new Cache.NamedKey("big_datasource", Ints.toByteArray(i)), i);
+    }
+    put(cache, new Cache.NamedKey("big_small_datasource", HI), 1);
+
+    for (int i = 0; i < 10; ++i) {
+      Assert.assertEquals(i, get(cache, new Cache.NamedKey("other", Ints.toByteArray(i))));
+    }
+    Assert.assertEquals(1, get(cache, new Cache.NamedKey("big_small_datasource", HI)));
+    Assert.assertEquals(10, cache.getCache().estimatedSize());
+    Assert.assertTrue(cache.getPartitions().get(1).weightedSize().getAsLong() <= 10_000);
+
+    final Map<Cache.NamedKey, byte[]> bulk = cache.getBulk(
+        ImmutableList.of(
+            new Cache.NamedKey("other", Ints.toByteArray(3)),
+            new Cache.NamedKey("big_small_datasource", HI)
+        )
+    );
+    Assert.assertEquals(2, bulk.size());
+
+    final CapturingEmitter emitter = new CapturingEmitter();
+    cache.doMonitor(new ServiceEmitter("service", "host", emitter));
+    Assert.assertEquals(2L, emitter.getValue("query/cache/caffeine/partition/total/hits", "big_small_"));
+    Assert.assertEquals(13L, emitter.getValue("query/cache/caffeine/total/requests", null));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPartitionsOverBudget()
+  {
+    CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public long getSizeInBytes()
+          {
+            return 100;
+          }
+
+          @Override
+          public Map<String, Long> getPartitions()
+          {
+            return ImmutableMap.of("a", 60L, "b", 60L);
+          }
+        },
+        Runnable::run
+    );
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPartitionsUseWholeBudget()
+  {
+    CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public long getSizeInBytes()
+          {
+            return 100;
+          }
+
+          @Override
+          public Map<String, Long> getPartitions()
+          {
+            return ImmutableMap.of("a", 40L, "b", 60L);
+          }
+        },
+        Runnable::run
+    );
+  }
+
+  @Test
+  public void testShards()
+  {
+    final CaffeineCacheConfig config = new CaffeineCacheConfig()
+    {
+      @Override
+      public long getSizeInBytes()
+      {
+        return 100_000;
+      }
+
+      @Override
+      public Map<String, Long> getPartitions()
+      {
+        return ImmutableMap.of("big_", 20_000L);
+      }
+
+      @Override
+      public int getShards()
+      {
+        return 4;
+      }
+    };
+    final CaffeineCache cache = CaffeineCache.create(config, Runnable::run);
+    Assert.assertEquals(8, cache.getPartitions().size());
+    for (int i = 0; i < 4; ++i) {
+      Assert.assertEquals("big_", cache.getPartitions().get(i).getName());
+      Assert.assertEquals(
+          5_000L,
+          cache.getPartitions().get(i).getCache().policy().eviction().get().getMaximum()
+      );
+      Assert.assertEquals(CachePartition.DEFAULT_NAME, cache.getPartitions().get(4 + i).getName());
+      Assert.assertEquals(
+          20_000L,
+          cache.getPartitions().get(4 + i).getCache().policy().eviction().get().getMaximum()
+      );
+    }
+
+    for (int i = 0; i < 100; ++i) {
+      put(cache, new Cache.NamedKey("other", Ints.toByteArray(i)), i);
+    }
+    put(cache, new Cache.NamedKey("big_datasource", HI), 1);
+    for (int i = 0; i < 100; ++i) {
+      Assert.assertEquals(i, get(cache, new Cache.NamedKey("other", Ints.toByteArray(i))));
+    }
+    Assert.assertEquals(1, get(cache, new Cache.NamedKey("big_datasource", HI)));
+
+    int usedShards = 0;
+    for (CachePartition shard : cache.getPartitions().subList(4, 8)) {
+      usedShards += shard.getCache().estimatedSize() > 0 ? 1 : 0;
+    }
+    Assert.assertTrue(usedShards > 1);
+    Assert.assertEquals(101, cache.getStats().getNumEntries());
+
+    final CapturingEmitter emitter = new CapturingEmitter();
+    cache.doMonitor(new ServiceEmitter("service", "host", emitter));
+    Assert.assertEquals(101L, emitter.getValue("query/cache/caffeine/total/requests", null));
+    Assert.assertEquals(100L, emitter.getValue("query/cache/caffeine/partition/entries", CachePartition.DEFAULT_NAME));
+    Assert.assertEquals(1L, emitter.getValue("query/cache/caffeine/partition/total/hits", "big_"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testShardsMustBePositive()
+  {
+    CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public int getShards()
+          {
+            return 0;
+          }
+        },
+        Runnable::run
+    );
+  }
+
+  @Test
+  public void testShardsTakeTheRemainder()
+  {
+    final CaffeineCache cache = CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public long getSizeInBytes()
+          {
+            return 1_000_000_000;
+          }
+
+          @Override
+          public int getShards()
+          {
+            return 3;
+          }
+
+          @Override
+          public boolean isAutoResize()
+          {
+            return true;
+          }
+        },
+        Runnable::run
+    );
+    long maximums = 0;
+    for (CachePartition shard : cache.getPartitions()) {
+      maximums += shard.getCache().policy().eviction().get().getMaximum();
+    }
+    Assert.assertEquals(1_000_000_000L, maximums);
+    Assert.assertEquals(1_000_000_000L, cache.getSizeTuner().getMaximumBytes());
+  }
+
+  @Test
+  public void testPayloadMetrics()
+  {
+    final CaffeineCache cache = CaffeineCache.create(new CaffeineCacheConfig(), Runnable::run);
+    // Compressible
+    cache.put(new Cache.NamedKey("the", HI), new byte[10_000]);
+    // Below the compression threshold
+    cache.put(new Cache.NamedKey("the", HO), new byte[10]);
+
+    final CapturingEmitter emitter = new CapturingEmitter();
+    cache.doMonitor(new ServiceEmitter("service", "host", emitter));
+    Assert.assertEquals(10_010L, emitter.getValue("query/cache/caffeine/total/rawBytes", null));
+    Assert.assertEquals(1L, emitter.getValue("query/cache/caffeine/total/compressedValues", null));
+    final long stored = emitter.getValue("query/cache/caffeine/total/storedBytes", null).longValue();
+    Assert.assertTrue(stored < 1_000);
+    Assert.assertEquals(
+        10_010.0 / stored,
+        emitter.getValue("query/cache/caffeine/total/compressionRatio", null).doubleValue(),
+        1e-9
+    );
+    Assert.assertEquals(1L, emitter.getValueWithDimension("query/cache/caffeine/total/values", "sizeBucket", "1KiB"));
+    Assert.assertEquals(1L, emitter.getValueWithDimension("query/cache/caffeine/total/values", "sizeBucket", "16KiB"));
+    Assert.assertEquals(0L, emitter.getValueWithDimension("query/cache/caffeine/total/values", "sizeBucket", "larger"));
+
+    cache.put(new Cache.NamedKey("the", HI), new byte[100]);
+    final CapturingEmitter next = new CapturingEmitter();
+    cache.doMonitor(new ServiceEmitter("service", "host", next));
+    Assert.assertEquals(100L, next.getValue("query/cache/caffeine/delta/rawBytes", null));
+    Assert.assertEquals(10_110L, next.getValue("query/cache/caffeine/total/rawBytes", null));
+    Assert.assertEquals(1L, next.getValueWithDimension("query/cache/caffeine/delta/values", "sizeBucket", "1KiB"));
+    Assert.assertEquals(0L, next.getValueWithDimension("query/cache/caffeine/delta/values", "sizeBucket", "16KiB"));
+  }
+
+  @Test
+  public void testLatencyMetrics()
+  {
+    final CaffeineCache cache = CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public boolean isLatencyMetrics()
+          {
+            return true;
+          }
+        },
+        Runnable::run
+    );
+    final Cache.NamedKey key = new Cache.NamedKey("the", HI);
+    cache.put(key, new byte[1000]);
+    Assert.assertArrayEquals(new byte[1000], cache.get(key));
+    Assert.assertNull(cache.get(new Cache.NamedKey("the", HO)));
+    cache.getBulk(ImmutableList.of(key));
+
+    final CapturingEmitter emitter = new CapturingEmitter();
+    cache.doMonitor(new ServiceEmitter("service", "host", emitter));
+    Assert.assertEquals(2L, emitter.getValue("query/cache/caffeine/get/count", null));
+    Assert.assertEquals(1L, emitter.getValue("query/cache/caffeine/put/count", null));
+    Assert.assertEquals(1L, emitter.getValue("query/cache/caffeine/getBulk/count", null));
+    Assert.assertEquals(1L, emitter.getValue("query/cache/caffeine/compress/count", null));
+    Assert.assertEquals(2L, emitter.getValue("query/cache/caffeine/decompress/count", null));
+    final double p50 = emitter.getValue("query/cache/caffeine/get/latency/p50", null).doubleValue();
+    Assert.assertTrue(p50 > 0);
+    Assert.assertTrue(p50 <= emitter.getValue("query/cache/caffeine/get/latency/max", null).doubleValue());
+
+    // Each monitor reports only its own interval
+    final CapturingEmitter next = new CapturingEmitter();
+    cache.doMonitor(new ServiceEmitter("service", "host", next));
+    Assert.assertEquals(0L, next.getValue("query/cache/caffeine/get/count", null));
+    Assert.assertNull(next.getValue("query/cache/caffeine/get/latency/p50", null));
+  }
+
+  @Test
+  public void testLatencyMetricsDisabled()
+  {
+    final CaffeineCache cache = CaffeineCache.create(new CaffeineCacheConfig(), Runnable::run);
+    cache.put(new Cache.NamedKey("the", HI), new byte[1000]);
+    final CapturingEmitter emitter = new CapturingEmitter();
+    cache.doMonitor(new ServiceEmitter("service", "host", emitter));
+    Assert.assertNull(emitter.getValue("query/cache/caffeine/put/count", null));
+  }
+
+  @Test
+  public void testAutoResize()
+  {
+    final CaffeineCache cache = CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public long getSizeInBytes()
+          {
+            return 1000;
+          }
+        },
+        Runnable::run
+    );
+    final double[] heapUsage = {0.5};
+    final CacheSizeTuner tuner = new CacheSizeTuner(cache.getPartitions(), 500, 1200, 0.6, 0.85, () -> heapUsage[0]);
+
+    // Not evicting, nothing to gain
+    Assert.assertEquals(1000, tuner.tune(tunerStats(50, 50, 0)));
+    // Evicting with an idle heap
+    Assert.assertEquals(1100, tuner.tune(tunerStats(50, 50, 100)));
+    Assert.assertEquals(1100, cache.getCache().policy().eviction().get().getMaximum());
+    Assert.assertEquals(1200, tuner.tune(tunerStats(60, 40, 100)));
+    // Capped
+    Assert.assertEquals(1200, tuner.tune(tunerStats(70, 30, 100)));
+
+    // Heap pressure shrinks until the lower bound
+    heapUsage[0] = 0.9;
+    Assert.assertEquals(900, tuner.tune(tunerStats(70, 30, 100)));
+    Assert.assertEquals(675, tuner.tune(tunerStats(70, 30, 100)));
+    Assert.assertEquals(506, tuner.tune(tunerStats(70, 30, 100)));
+    Assert.assertEquals(500, tuner.tune(tunerStats(70, 30, 100)));
+    Assert.assertEquals(500, cache.getCache().policy().eviction().get().getMaximum());
+
+    // Between the watermarks nothing changes
+    heapUsage[0] = 0.7;
+    Assert.assertEquals(500, tuner.tune(tunerStats(10, 90, 100)));
+
+    // Growth stops once it no longer improves the hit rate, and resumes when the hit rate drops
+    heapUsage[0] = 0.5;
+    Assert.assertEquals(550, tuner.tune(tunerStats(50, 50, 100)));
+    Assert.assertEquals(550, tuner.tune(tunerStats(50, 50, 100)));
+    Assert.assertEquals(550, tuner.tune(tunerStats(50, 50, 100)));
+    Assert.assertEquals(605, tuner.tune(tunerStats(40, 60, 100)));
+  }
+
+  @Test
+  public void testAutoResizeMetric()
+  {
+    final CaffeineCache cache = CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public long getSizeInBytes()
+          {
+            return 1000;
+          }
+
+          @Override
+          public boolean isAutoResize()
+          {
+            return true;
+          }
+
+          @Override
+          public long getAutoResizeMinBytes()
+          {
+            return 100;
+          }
+        },
+        Runnable::run
+    );
+    Assert.assertNotNull(cache.getSizeTuner());
+    final CapturingEmitter emitter = new CapturingEmitter();
+    cache.doMonitor(new ServiceEmitter("service", "host", emitter));
+    final long maxSize = emitter.getValue("query/cache/caffeine/maxSizeBytes", null).longValue();
+    // Never grows past sizeInBytes when no maximum is configured
+    Assert.assertTrue(maxSize == 1000 || maxSize == 750);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAutoResizeRequiresSize()
+  {
+    CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public boolean isAutoResize()
+          {
+            return true;
+          }
+        },
+        Runnable::run
+    );
+  }
+
+  @Test
+  public void testPressureShedding()
+  {
+    final CaffeineCache cache = CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public long getSizeInBytes()
+          {
+            return 10000;
+          }
+
+          @Override
+          public double getPressureShedFraction()
+          {
+            return 0.5;
+          }
+        },
+        Runnable::run
+    );
+    final Random random = new Random(0);
+    for (int i = 0; i < 20; ++i) {
+      final byte[] value = new byte[300];
+      random.nextBytes(value);
+      cache.put(new Cache.NamedKey("the", Ints.toByteArray(i)), value);
+    }
+    final CachePartition partition = cache.getPartitions().get(0);
+    final long weight = partition.weightedSize().getAsLong();
+
+    cache.shedColdest();
+    Assert.assertEquals(5000, cache.getCache().policy().eviction().get().getMaximum());
+    Assert.assertTrue(partition.weightedSize().getAsLong() <= weight / 2);
+    Assert.assertTrue(cache.getCache().estimatedSize() > 0);
+
+    // Each call under lasting pressure sheds further
+    cache.shedColdest();
+    Assert.assertEquals(2500, cache.getCache().policy().eviction().get().getMaximum());
+    cache.shedColdest();
+    Assert.assertEquals(1250, cache.getCache().policy().eviction().get().getMaximum());
+
+    // Never below a tenth of sizeInBytes by default
+    cache.shedColdest();
+    Assert.assertEquals(1000, cache.getCache().policy().eviction().get().getMaximum());
+    cache.shedColdest();
+    Assert.assertEquals(1000, cache.getCache().policy().eviction().get().getMaximum());
+
+    cache.restoreCapacity();
+    Assert.assertEquals(10000, cache.getCache().policy().eviction().get().getMaximum());
+  }
+
+  @Test
+  public void testMemoryPressureMonitor()
+  {
+    final int[] pressure = {0};
+    final int[] relief = {0};
+    final MemoryPressureMonitor monitor = new MemoryPressureMonitor(0.9, 0.7, () -> pressure[0]++, () -> relief[0]++);
+    monitor.check(0, 0.5);
+    Assert.assertFalse(monitor.isUnderPressure());
+
+    monitor.check(1, 0.95);
+    Assert.assertTrue(monitor.isUnderPressure());
+    // The GC notification of the same collection doesn't shed again
+    monitor.check(1, 0.95);
+    Assert.assertEquals(1, pressure[0]);
+    // Between the thresholds pressure lasts
+    monitor.check(1, 0.8);
+    Assert.assertTrue(monitor.isUnderPressure());
+    monitor.check(2, 0.92);
+    Assert.assertEquals(2, pressure[0]);
+
+    monitor.check(2, 0.6);
+    Assert.assertFalse(monitor.isUnderPressure());
+    monitor.check(2, 0.5);
+    Assert.assertEquals(1, relief[0]);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPressureSheddingRequiresSize()
+  {
+    CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public double getPressureShedFraction()
+          {
+            return 0.5;
+          }
+        },
+        Runnable::run
+    );
+  }
+
+  @Test
+  public void testCostAdmission()
+  {
+    final CaffeineCache cache = CaffeineCache.create(
+        new CaffeineCacheConfig()
+        {
+          @Override
+          public long getSizeInBytes()
+          {
+            return 1000;
+          }
+
+          @Override
+          public boolean isCostAdmission()
+          {
+            return true;
+          }
+        },
+        Runnable::run
+    );
+    final Random random = new Random(0);
+    // Not full yet, cheap values get in
+    final byte[] value = new byte[100];
+    random.nextBytes(value);
+    cache.put(new Cache.NamedKey("the", Ints.toByteArray(0)), value, 100);
+    cache.put(new Cache.NamedKey("the", Ints.toByteArray(1)), value, 1);
+    Assert.assertNotNull(cache.get(new Cache.NamedKey("the", Ints.toByteArray(1))));
+
+    final byte[] big = new byte[900];
+    random.nextBytes(big);
+    // Fullness is only checked once per monitor tick
+    cache.put(new Cache.NamedKey("the", Ints.toByteArray(2)), big, 0);
+    Assert.assertEquals(0, cache.getCostAdmission().getRejections());
+    cache.invalidate(new Cache.NamedKey("the", Ints.toByteArray(2)));
+    final CapturingEmitter emitter = new CapturingEmitter();
+    cache.doMonitor(new ServiceEmitter("service", "host", emitter));
+
+    cache.put(new Cache.NamedKey("the", Ints.toByteArray(2)), big, 0);
+    Assert.assertNull(cache.get(new Cache.NamedKey("the", Ints.toByteArray(2))));
+    Assert.assertEquals(1, cache.getCostAdmission().getRejections());
+
+    // Expensive values are left to Caffeine's admission
+    cache.put(new Cache.NamedKey("the", Ints.toByteArray(3)), big, 10_000);
+    Assert.assertEquals(1, cache.getCostAdmission().getRejections());
+    // Plain puts are never filtered
+    cache.put(new Cache.NamedKey("the", Ints.toByteArray(4)), big);
+    Assert.assertEquals(1, cache.getCostAdmission().getRejections());
+
+    cache.doMonitor(new ServiceEmitter("service", "host", emitter));
+    Assert.assertEquals(1L, emitter.getValue("query/cache/caffeine/total/costRejections", null));
+  }
+
+  @Test
+  public void testCostAdmissionAverage()
+  {
+    final CostAdmission admission = new CostAdmission(0.5);
+    Assert.assertTrue(admission.admit(10, 10, true));
+    Assert.assertEquals(1.0, admission.getMeanCostDensity(), 0.0);
+    Assert.assertFalse(admission.admit(4, 10, true));
+    Assert.assertTrue(admission.admit(4, 10, false));
+    Assert.assertTrue(admission.admit(6, 10, true));
+  }
+
+  @Test
+  public void testBoundedPool() throws Exception
+  {
+    final ThreadPoolExecutor pool = (ThreadPoolExecutor) CacheExecutorFactory.from("bounded_pool")
+                                                                            .createExecutor(2, 5);
+    try {
+      Assert.assertEquals(2, pool.getMaximumPoolSize());
+      Assert.assertEquals(5, pool.getQueue().remainingCapacity());
+      final CaffeineCache cache = CaffeineCache.create(
+          new CaffeineCacheConfig()
+          {
+            @Override
+            public long getSizeInBytes()
+            {
+              return 999999;
+            }
+          },
+          pool
+      );
+      for (int i = 0; i < 100; ++i) {
+        put(cache, new Cache.NamedKey("the", Ints.toByteArray(i)), i);
+      }
+      final CapturingEmitter emitter = new CapturingEmitter();
+      cache.doMonitor(new ServiceEmitter("service", "host", emitter));
+      Assert.assertTrue(emitter.getValue("query/cache/caffeine/executor/queueSize", null).intValue() <= 5);
+      Assert.assertNotNull(emitter.getValue("query/cache/caffeine/executor/activeThreads", null));
+    }
+    finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testShardsSplitExecutorThreads() throws Exception
+  {
+    final CaffeineCacheConfig config = new DefaultObjectMapper().readValue(
+        "{\"cacheExecutorFactory\":\"bounded_pool\",\"cacheExecutorThreads\":8,\"cacheExecutorQueueSize\":100}",
+        CaffeineCacheConfig.class
+    );
+    final ThreadPoolExecutor pool = (ThreadPoolExecutor) config.createExecutor(4);
+    try {
+      Assert.assertEquals(2, pool.getMaximumPoolSize());
+      Assert.assertEquals(25, pool.getQueue().remainingCapacity());
+    }
+    finally {
+      pool.shutdownNow();
+    }
+    // Every shard keeps at least one thread
+    final ThreadPoolExecutor small = (ThreadPoolExecutor) config.createExecutor(16);
+    try {
+      Assert.assertEquals(1, small.getMaximumPoolSize());
+    }
+    finally {
+      small.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testBoundedPoolRejectsAsyncPuts() throws Exception
+  {
+    final ThreadPoolExecutor pool = (ThreadPoolExecutor) CacheExecutorFactory
+        .from("bounded_pool")
+        .createRejectingExecutor(1, 1, "CaffeineAsyncPut-%s");
+    Assert.assertTrue(pool.getThreadFactory().newThread(() -> {}).getName().startsWith("CaffeineAsyncPut-"));
+    final CountDownLatch release = new CountDownLatch(1);
+    try {
+      final AsyncWriter writer = new AsyncWriter(pool, 100, 1000);
+      writer.submit(1, () -> {
+        try {
+          release.await();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      // One running and one queued, the next is dropped instead of running on this thread
+      final Thread caller = Thread.currentThread();
+      final boolean[] ranOnCaller = {false};
+      writer.submit(1, () -> ranOnCaller[0] |= Thread.currentThread() == caller);
+      writer.submit(1, () -> ranOnCaller[0] |= Thread.currentThread() == caller);
+      Assert.assertEquals(1, writer.getDropped());
+      Assert.assertFalse(ranOnCaller[0]);
+    }
+    finally {
+      release.countDown();
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testVirtualThreadExecutor() throws Exception
+  {
+    final Executor executor = CacheExecutorFactory.from("virtual_thread").createExecutor();
+    if (executor == null) {
+      // Not available on this JDK, the common pool is used instead
+      return;
+    }
+    final CountDownLatch ran = new CountDownLatch(1);
+    executor.execute(ran::countDown);
+    Assert.assertTrue(ran.await(10, TimeUnit.SECONDS));
+    ((ExecutorService) executor).shutdown();
+  }
+
+  private static com.github.benmanes.caffeine.cache.stats.CacheStats tunerStats(
+      long hits,
+      long misses,
+      long evictionWeight
+  )
+  {
+    return new com.github.benmanes.caffeine.cache.stats.CacheStats(hits, misses, 0, 0, 0, 0, evictionWeight);
+  }
+
+  @Test
+  public void testFromProperties()
+  {
+    final String keyPrefix = "cache.config.prefix";
+    final Properties properties = new Properties();
+    properties.put(keyPrefix + ".expireAfter", "10");
+    properties.put(keyPrefix + ".sizeInBytes", "100");
+    properties.put(keyPrefix + ".cacheExecutorFactory", "single_thread");
+    final Injector injector = Initialization.makeInjectorWithModules(
+        GuiceInjectors.makeStartupInjector(),
+        ImmutableList.<Module>of(
+            binder -> {
+              binder.bindConstant().annotatedWith(Names.named("serviceName")).to("druid/test");
+              binder.bindConstant().annotatedWith(Names.named("servicePort")).to(0);
+              JsonConfigProvider.bind(binder, keyPrefix, CaffeineCacheConfig.class);
+            }
+        )
+    );
+    final JsonConfigurator configurator = injector.getInstance(JsonConfigurator.class);
+    final JsonConfigProvider<CaffeineCacheConfig> caffeineCacheConfigJsonConfigProvider = JsonConfigProvider.of(
+        keyPrefix,
+        CaffeineCacheConfig.class
+    );
+    caffeineCacheConfigJsonConfigProvider.inject(properties, configurator);
+    final CaffeineCacheConfig config = caffeineCacheConfigJsonConfigProvider.get().get();
+    Assert.assertEquals(10, config.getExpireAfter());
+    Assert.assertEquals(100, config.getSizeInBytes());
+    Assert.assertNotNull(config.createExecutor());
+  }
+
+  @Test
+  public void testMixedCaseFromProperties()
+  {
+    final String keyPrefix = "cache.config.prefix";
+    final Properties properties = new Properties();
+    properties.put(keyPrefix + ".expireAfter", "10");
+    properties.put(keyPrefix + ".sizeInBytes", "100");
+    properties.put(keyPrefix + ".cacheExecutorFactory", "CoMmON_FjP");
+    final Injector injector = Initialization.makeInjectorWithModules(
+        GuiceInjectors.makeStartupInjector(),
+        ImmutableList.<Module>of(
+            binder -> {
+              binder.bindConstant().annotatedWith(Names.named("serviceName")).to("druid/test");
+              binder.bindConstant().annotatedWith(Names.named("servicePort")).to(0);
+              JsonConfigProvider.bind(binder, keyPrefix, CaffeineCacheConfig.class);
+            }
+        )
+    );
+    final JsonConfigurator configurator = injector.getInstance(JsonConfigurator.class);
+    final JsonConfigProvider<CaffeineCacheConfig> caffeineCacheConfigJsonConfigProvider = JsonConfigProvider.of(
+        keyPrefix,
+        CaffeineCacheConfig.class
+    );
+    caffeineCacheConfigJsonConfigProvider.inject(properties, configurator);
+    final CaffeineCacheConfig config = caffeineCacheConfigJsonConfigProvider.get().get();
+    Assert.assertEquals(10, config.getExpireAfter());
+    Assert.assertEquals(100, config.getSizeInBytes());
+    Assert.assertNull(config.createExecutor());
+  }
+
+  @Test
+  public void testDefaultFromProperties()
+  {
+    final String keyPrefix = "cache.config.prefix";
+    final Properties properties = new Properties();
+    final Injector injector = Initialization.makeInjectorWithModules(
+        GuiceInjectors.makeStartupInjector(),
+        ImmutableList.<Module>of(
+            binder -> {
+              binder.bindConstant().annotatedWith(Names.named("serviceName")).to("druid/test");
+              binder.bindConstant().annotatedWith(Names.named("servicePort")).to(0);
+              JsonConfigProvider.bind(binder, keyPrefix, CaffeineCacheConfig.class);
+            }
+        )
+    );
+    final JsonConfigurator configurator = injector.getInstance(JsonConfigurator.class);
+    final JsonConfigProvider<CaffeineCacheConfig> caffeineCacheConfigJsonConfigProvider = JsonConfigProvider.of(
+        keyPrefix,
+        CaffeineCacheConfig.class
+    );
+    caffeineCacheConfigJsonConfigProvider.inject(properties, configurator);
+    final CaffeineCacheConfig config = caffeineCacheConfigJsonConfigProvider.get().get();
+    Assert.assertEquals(-1, config.getExpireAfter());
+    Assert.assertEquals(-1, config.getSizeInBytes());
+    Assert.assertNull(config.createExecutor());
+  }
+
+  public int get(Cache cache, Cache.NamedKey key)
+  {
+    return Ints.fromByteArray(cache.get(key));
+  }
+
+  public void put(Cache cache, Cache.NamedKey key, Integer value)
+  {
+    cache.put(key, Ints.toByteArray(value));
+  }
+}
+
+class CaffeineCacheProviderWithConfig extends CaffeineCacheProvider
+{
+  private final CaffeineCacheConfig config;
+
+  @Inject
+  public CaffeineCacheProviderWithConfig(CaffeineCacheConfig config)
+  {
+    this.config = config;
+  }
+
+  @Override
+  public Cache get()
+  {
+    return CaffeineCache.create(config);
+  }
+}
+
+/**
+ * In process stand-in for a remote cache, remembering the keys it was asked for
+ */
+class MapRemoteCache implements Cache
+{
+  final Map<NamedKey, byte[]> values = new ConcurrentHashMap<>();
+  final List<NamedKey> requestedKeys = new CopyOnWriteArrayList<>();
+
+  @Override
+  public byte[] get(NamedKey key)
+  {
+    requestedKeys.add(key);
+    return values.get(key);
+  }
+
+  @Override
+  public void put(NamedKey key, byte[] value)
+  {
+    values.put(key, value);
+  }
+
+  @Override
+  public Map<NamedKey, byte[]> getBulk(Iterable<NamedKey> keys)
+  {
+    final Map<NamedKey, byte[]> found = new HashMap<>();
+    for (NamedKey key : keys) {
+      requestedKeys.add(key);
+      if (values.containsKey(key)) {
+        found.put(key, values.get(key));
+      }
+    }
+    return found;
+  }
+
+  @Override
+  public void close(String namespace)
+  {
+    values.keySet().removeIf(key -> key.namespace.equals(namespace));
+  }
+
+  @Override
+  public CacheStats getStats()
+  {
+    return new CacheStats(0, 0, values.size(), 0, 0, 0, 0);
+  }
+
+  @Override
+  public boolean isLocal()
+  {
+    return false;
+  }
+
+  @Override
+  public void doMonitor(ServiceEmitter emitter)
+  {
+  }
+}
+
+class CapturingEmitter implements Emitter
+{
+  private final List<ServiceMetricEvent> events = new CopyOnWriteArrayList<>();
+
+  /**
+   * @return The value of the last event for metric, with the given partition dimension
+   */
+  public Number getValue(String metric, String partition)
+  {
+    return getValueWithDimension(metric, "partition", partition);
+  }
+
+  /**
+   * @return The value of the last event for metric, with the given dimension value
+   */
+  public Number getValueWithDimension(String metric, String dimension, String dimensionValue)
+  {
+    Number value = null;
+    for (ServiceMetricEvent event : events) {
+      if (event.getMetric().equals(metric) && Objects.equals(dimensionValue, event.getUserDims().get(dimension))) {
+        value = event.getValue();
+      }
+    }
+    return value;
+  }
+
+  @Override
+  public void start()
+  {
+  }
+
+  @Override
+  public void emit(Event event)
+  {
+    events.add((ServiceMetricEvent) event);
+  }
+
+  @Override
+  public void flush()
+  {
+  }
+
+  @Override
+  public void close()
   {
-    return CaffeineCache.create(config);
   }
 }